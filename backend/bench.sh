@@ -0,0 +1,19 @@
+#!/usr/bin/env bash
+set -euo pipefail
+
+ROOT_DIR="$(cd "$(dirname "$0")" && pwd)"
+OUT_DIR="$ROOT_DIR/out-bench"
+BENCHMARK="${1:-ArrayCaptureBenchmark}"
+shift || true
+
+# The instrumented engine uses ASM, vendored in lib/.
+ASM_JARS=("$ROOT_DIR"/lib/asm-*.jar)
+ASM_CP="$(IFS=:; echo "${ASM_JARS[*]}")"
+
+mkdir -p "$OUT_DIR"
+javac -g --add-modules jdk.jdi -cp "$ASM_CP" -d "$OUT_DIR" "$ROOT_DIR"/src/visualizer/*.java "$ROOT_DIR"/bench/visualizer/*.java
+for asm in "${ASM_JARS[@]}"; do
+  (cd "$OUT_DIR" && jar xf "$asm" org)
+done
+jar cf "$OUT_DIR/visualizer-bench.jar" -C "$OUT_DIR" visualizer -C "$OUT_DIR" org
+java --add-modules jdk.jdi -Dvisualizer.pool.size=0 -cp "$OUT_DIR/visualizer-bench.jar" "visualizer.$BENCHMARK" "$@"
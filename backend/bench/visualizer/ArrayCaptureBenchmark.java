@@ -0,0 +1,110 @@
+package visualizer;
+
+import com.sun.jdi.ArrayReference;
+import com.sun.jdi.Method;
+import com.sun.jdi.PrimitiveValue;
+import com.sun.jdi.Value;
+import com.sun.jdi.event.BreakpointEvent;
+import com.sun.jdi.event.ClassPrepareEvent;
+import com.sun.jdi.event.Event;
+import com.sun.jdi.event.EventSet;
+import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.ClassPrepareRequest;
+import com.sun.jdi.request.EventRequest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public final class ArrayCaptureBenchmark {
+    private static final String CODE = "public class Solution {\n"
+            + "  public int run(int n) {\n"
+            + "    int[] nums = new int[n];\n"
+            + "    for (int i = 0; i < n; i++) {\n"
+            + "      nums[i] = i * 31;\n"
+            + "    }\n"
+            + "    return hold(nums);\n"
+            + "  }\n"
+            + "  int hold(int[] nums) {\n"
+            + "    return nums.length;\n"
+            + "  }\n"
+            + "}\n";
+
+    private ArrayCaptureBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        try (JavaTracer.Program program = JavaTracer.prepare(CODE, Collections.singletonList("n = " + size))) {
+            DebuggeePool.Debuggee debuggee = DebuggeePool.borrow();
+            try {
+                ArrayReference array = suspendAtHold(debuggee, program);
+                int count = array.length();
+                measure("per-element getValue", iterations, () -> readPerElement(array, count));
+                measure("bulk getValues", iterations, () -> readBulk(array, count));
+            } finally {
+                DebuggeePool.release(debuggee);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static ArrayReference suspendAtHold(DebuggeePool.Debuggee debuggee, JavaTracer.Program program) throws Exception {
+        ClassPrepareRequest prepareRequest = debuggee.vm.eventRequestManager().createClassPrepareRequest();
+        prepareRequest.addClassFilter(program.build.primaryClassName);
+        prepareRequest.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+        prepareRequest.enable();
+        debuggee.start(program.classDir, program.build.mainClassName(0), null);
+        while (true) {
+            EventSet eventSet = debuggee.vm.eventQueue().remove();
+            for (Event event : eventSet) {
+                if (event instanceof ClassPrepareEvent) {
+                    Method hold = ((ClassPrepareEvent) event).referenceType().methodsByName("hold").get(0);
+                    BreakpointRequest breakpoint = debuggee.vm.eventRequestManager().createBreakpointRequest(hold.location());
+                    breakpoint.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+                    breakpoint.enable();
+                } else if (event instanceof BreakpointEvent) {
+                    // Leave the thread suspended so the array stays put while we read it.
+                    return (ArrayReference) ((BreakpointEvent) event).thread().frame(0).getArgumentValues().get(0);
+                }
+            }
+            eventSet.resume();
+        }
+    }
+
+    private static List<Object> readPerElement(ArrayReference array, int count) {
+        List<Object> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            PrimitiveValue value = (PrimitiveValue) array.getValue(i);
+            switch (value.type().name()) {
+                case "int":
+                case "long":
+                    items.add(Long.parseLong(value.toString()));
+                    break;
+                default:
+                    items.add(value.toString());
+                    break;
+            }
+        }
+        return items;
+    }
+
+    private static TraceModels.HeapArray readBulk(ArrayReference array, int count) {
+        TraceModels.HeapArray items = TraceModels.heapArray(new TraceModels.RefTable().array(array.uniqueID()), "nums", 'I', count);
+        List<Value> values = array.getValues(0, count);
+        JavaTracer.readPrimitiveItems(values, 'I', items, 0);
+        return items;
+    }
+
+    private static void measure(String label, int iterations, Runnable capture) {
+        for (int i = 0; i < Math.max(10, iterations / 10); i++) {
+            capture.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            capture.run();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-22s %8.1f steps/s  (%.3f ms per array capture)%n", label, iterations / seconds, seconds * 1000 / iterations);
+    }
+}
@@ -0,0 +1,55 @@
+package visualizer;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Traces the same program with every registered engine and reports captured steps per second. The program bubble-sorts an array large enough to hit the step cap, so each run captures the
+ * maximum number of steps; JVM startup is included in both, as it is for a real request.
+ */
+public final class EngineBenchmark {
+    private static final String CODE = "public void sort(int[] nums) {\n"
+            + "  for (int i = 0; i < nums.length; i++) {\n"
+            + "    for (int j = 0; j + 1 < nums.length - i; j++) {\n"
+            + "      if (nums[j] > nums[j + 1]) {\n"
+            + "        int t = nums[j];\n"
+            + "        nums[j] = nums[j + 1];\n"
+            + "        nums[j + 1] = t;\n"
+            + "      }\n"
+            + "    }\n"
+            + "  }\n"
+            + "}\n";
+
+    private EngineBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 120;
+        int[] values = new int[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = size - i;
+        }
+        String input = "nums = " + Arrays.toString(values).replace(" ", "");
+        try (JavaTracer.Program program = JavaTracer.prepare(CODE, Collections.singletonList(input))) {
+            for (TraceEngine engine : TraceEngines.all()) {
+                measure(engine, iterations, program, input);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void measure(TraceEngine engine, int iterations, JavaTracer.Program program, String input) throws Exception {
+        engine.trace(program, 0, input, Sampling.FULL, new CancellationToken());
+        long[] millis = new long[iterations];
+        int steps = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            steps = engine.trace(program, 0, input, Sampling.FULL, new CancellationToken()).size();
+            millis[i] = (System.nanoTime() - start) / 1_000_000;
+        }
+        Arrays.sort(millis);
+        long median = millis[iterations / 2];
+        System.out.printf("%-14s %6d steps  median %6d ms  %10.1f steps/s%n", engine.name(), steps, median, steps * 1000.0 / Math.max(1, median));
+    }
+}
@@ -0,0 +1,119 @@
+package visualizer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Time from starting a cold server JVM to the first captured step, without CDS archives, with the
+ * debuggee archive, and with both archives. Archives are trained into a temporary directory first; CDS
+ * needs the class path to be a jar, which {@code bench.sh} builds.
+ */
+public final class StartupBenchmark {
+    private static final String CODE = "public void moveZeroes(int[] nums) {\n"
+            + "  int w = 0;\n"
+            + "  for (int r = 0; r < nums.length; r++) {\n"
+            + "    if (nums[r] != 0) {\n"
+            + "      int t = nums[w];\n"
+            + "      nums[w] = nums[r];\n"
+            + "      nums[r] = t;\n"
+            + "      w++;\n"
+            + "    }\n"
+            + "  }\n"
+            + "}\n";
+    private static final String FIRST_STEP = "first-step";
+
+    private StartupBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--probe".equals(args[0])) {
+            probe();
+            return;
+        }
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        String classPath = System.getProperty("java.class.path");
+        if (!classPath.endsWith(".jar")) {
+            System.err.println("Class path must be a single jar for CDS; run through bench.sh.");
+            System.exit(2);
+        }
+        Path dir = Files.createTempDirectory("visualizer-cds-bench");
+        Path serverArchive = dir.resolve("server.jsa");
+        Path debuggeeArchive = dir.resolve("debuggee.jsa");
+        run(javaCommand(classPath, CdsTraining.class.getName(), debuggeeArchive.toString(),
+                "-Xlog:cds=off", "-XX:ArchiveClassesAtExit=" + serverArchive), false);
+
+        String probe = StartupBenchmark.class.getName();
+        measure("no archives", iterations, javaCommand(classPath, probe, "--probe"));
+        measure("debuggee archive", iterations, javaCommand(classPath, probe, "--probe",
+                "-Dvisualizer.debuggee.cdsArchive=" + debuggeeArchive));
+        measure("server + debuggee", iterations, javaCommand(classPath, probe, "--probe",
+                "-XX:SharedArchiveFile=" + serverArchive, "-Dvisualizer.debuggee.cdsArchive=" + debuggeeArchive));
+        Files.deleteIfExists(serverArchive);
+        Files.deleteIfExists(debuggeeArchive);
+        Files.deleteIfExists(dir);
+    }
+
+    private static List<String> javaCommand(String classPath, String mainClass, String argument, String... options) {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("--add-modules");
+        command.add("jdk.jdi");
+        command.add("-Dvisualizer.pool.size=0");
+        command.add("-cp");
+        command.add(classPath);
+        command.addAll(Arrays.asList(options));
+        command.add(mainClass);
+        command.add(argument);
+        return command;
+    }
+
+    private static void measure(String label, int iterations, List<String> command) throws Exception {
+        run(command, true);
+        long[] millis = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            millis[i] = run(command, true);
+        }
+        Arrays.sort(millis);
+        System.out.printf("%-20s median %5d ms  min %5d ms  max %5d ms%n", label, millis[iterations / 2], millis[0], millis[iterations - 1]);
+    }
+
+    // Wall time from process start until the probe reports its first step.
+    private static long run(List<String> command, boolean expectStep) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        long elapsed = -1;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (elapsed < 0 && line.equals(FIRST_STEP)) {
+                    elapsed = (System.nanoTime() - start) / 1_000_000;
+                }
+            }
+        }
+        if (process.waitFor() != 0 || (expectStep && elapsed < 0)) {
+            throw new IOException("Benchmark process failed: " + command);
+        }
+        return elapsed;
+    }
+
+    private static void probe() throws Exception {
+        try (JavaTracer.Program program = JavaTracer.prepare(CODE, Collections.singletonList("nums = [0,1,0,3,12]"))) {
+            JavaTracer.ENGINE.trace(program, 0, "nums = [0,1,0,3,12]", Sampling.FULL, new CancellationToken(), step -> {
+                System.out.println(FIRST_STEP);
+                System.out.flush();
+                throw new IOException("Stopped after the first step");
+            });
+        } catch (IOException ex) {
+            // Expected: the sink stops the trace; the debuggee is destroyed on release.
+        }
+        System.exit(0);
+    }
+}
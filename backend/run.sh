@@ -12,5 +12,34 @@ if lsof -ti:8080 >/dev/null; then
   lsof -ti:8080 | xargs kill -9
 fi
 
-javac -g --add-modules jdk.jdi -d "$OUT_DIR" "$ROOT_DIR"/src/visualizer/*.java
-java --add-modules jdk.jdi -cp "$OUT_DIR" visualizer.Server
+# The instrumented engine uses ASM, vendored in lib/.
+ASM_JARS=("$ROOT_DIR"/lib/asm-*.jar)
+ASM_CP="$(IFS=:; echo "${ASM_JARS[*]}")"
+
+javac -g --add-modules jdk.jdi -cp "$ASM_CP" -d "$OUT_DIR" "$ROOT_DIR"/src/visualizer/*.java
+for asm in "${ASM_JARS[@]}"; do
+  (cd "$OUT_DIR" && jar xf "$asm" org)
+done
+# CDS archives only cover classes loaded from jars, so the server runs from one, with ASM inside it.
+JAR="$OUT_DIR/visualizer.jar"
+jar cf "$JAR" -C "$OUT_DIR" visualizer -C "$OUT_DIR" org
+
+# Class data sharing: a training run dumps archives for the server and the debuggees. They are tied to
+# this jar and JDK, so they are retrained whenever the jar is rebuilt. Set VISUALIZER_CDS=0 to skip.
+CDS_DIR="$ROOT_DIR/cds"
+CDS_OPTS=()
+if [ "${VISUALIZER_CDS:-1}" != "0" ]; then
+  if [ ! "$CDS_DIR/server.jsa" -nt "$JAR" ]; then
+    echo "Training class data sharing archives..."
+    mkdir -p "$CDS_DIR"
+    rm -f "$CDS_DIR/server.jsa"
+    java --add-modules jdk.jdi -Xlog:cds=off -XX:ArchiveClassesAtExit="$CDS_DIR/server.jsa" -cp "$JAR" \
+      visualizer.CdsTraining "$CDS_DIR/debuggee.jsa" || echo "CDS training failed; starting without archives"
+  fi
+  if [ -f "$CDS_DIR/server.jsa" ]; then
+    CDS_OPTS+=("-XX:SharedArchiveFile=$CDS_DIR/server.jsa")
+  fi
+  CDS_OPTS+=("-Dvisualizer.debuggee.cdsArchive=$CDS_DIR/debuggee.jsa")
+fi
+
+java --add-modules jdk.jdi "${CDS_OPTS[@]}" -cp "$JAR" visualizer.Server
@@ -0,0 +1,147 @@
+package visualizer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many runs compile and trace at once. Callers beyond that wait in a bounded queue for at
+ * most {@code maxWaitMillis}; when the queue is full, the client already has its share of slots, or the
+ * wait runs out, the run is rejected straight away so the server can answer 429 instead of letting
+ * every request slow down together.
+ */
+final class AdmissionController {
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final int maxPerClient;
+    private final long maxWaitMillis;
+    private final Semaphore slots;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final ConcurrentHashMap<String, Integer> clients = new ConcurrentHashMap<>();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejectedQueueFull = new AtomicLong();
+    private final AtomicLong rejectedClientLimit = new AtomicLong();
+    private final AtomicLong rejectedTimeout = new AtomicLong();
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+    private final AtomicLong maxQueueNanos = new AtomicLong();
+    private final AtomicLong totalHoldNanos = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+
+    AdmissionController(int maxConcurrent, int maxQueued, int maxPerClient, long maxWaitMillis) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxQueued = Math.max(0, maxQueued);
+        this.maxPerClient = Math.max(1, maxPerClient);
+        this.maxWaitMillis = Math.max(0, maxWaitMillis);
+        this.slots = new Semaphore(this.maxConcurrent, true);
+    }
+
+    int capacity() {
+        return maxConcurrent + maxQueued;
+    }
+
+    Ticket admit(String client) throws RejectedException {
+        if (clients.merge(client, 1, Integer::sum) > maxPerClient) {
+            releaseClient(client);
+            rejectedClientLimit.incrementAndGet();
+            throw new RejectedException("Too many concurrent runs from this client", retryAfterSeconds());
+        }
+        long queuedAt = System.nanoTime();
+        if (waiting.incrementAndGet() > maxQueued + slots.availablePermits()) {
+            waiting.decrementAndGet();
+            releaseClient(client);
+            rejectedQueueFull.incrementAndGet();
+            throw new RejectedException("Server is busy, try again shortly", retryAfterSeconds());
+        }
+        boolean acquired = false;
+        try {
+            // The timed form honours the semaphore's FIFO order; plain tryAcquire() would barge.
+            acquired = slots.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waiting.decrementAndGet();
+        }
+        if (!acquired) {
+            releaseClient(client);
+            rejectedTimeout.incrementAndGet();
+            throw new RejectedException("Server is busy, try again shortly", retryAfterSeconds());
+        }
+        long now = System.nanoTime();
+        long queued = now - queuedAt;
+        totalQueueNanos.addAndGet(queued);
+        maxQueueNanos.accumulateAndGet(queued, Math::max);
+        admitted.incrementAndGet();
+        return new Ticket(client, now);
+    }
+
+    Map<String, Object> stats() {
+        long admittedCount = admitted.get();
+        long releasedCount = released.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("maxConcurrent", maxConcurrent);
+        stats.put("maxQueued", maxQueued);
+        stats.put("active", maxConcurrent - slots.availablePermits());
+        stats.put("waiting", waiting.get());
+        stats.put("admitted", admittedCount);
+        Map<String, Object> rejected = new LinkedHashMap<>();
+        rejected.put("queueFull", rejectedQueueFull.get());
+        rejected.put("clientLimit", rejectedClientLimit.get());
+        rejected.put("timedOut", rejectedTimeout.get());
+        stats.put("rejected", rejected);
+        stats.put("avgQueueMillis", admittedCount == 0 ? 0.0 : totalQueueNanos.get() / 1e6 / admittedCount);
+        stats.put("maxQueueMillis", maxQueueNanos.get() / 1e6);
+        stats.put("avgRunMillis", releasedCount == 0 ? 0.0 : totalHoldNanos.get() / 1e6 / releasedCount);
+        return stats;
+    }
+
+    // Roughly how long until the queue ahead would drain, from the average time a slot is held.
+    private int retryAfterSeconds() {
+        long releasedCount = released.get();
+        double averageRunSeconds = releasedCount == 0 ? 1.0 : totalHoldNanos.get() / 1e9 / releasedCount;
+        double drain = averageRunSeconds * (waiting.get() + maxConcurrent) / maxConcurrent;
+        return (int) Math.max(1, Math.min(60, Math.ceil(drain)));
+    }
+
+    private void releaseClient(String client) {
+        clients.computeIfPresent(client, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    final class Ticket implements AutoCloseable {
+        private final String client;
+        private final long admittedAt;
+        private boolean closed;
+
+        private Ticket(String client, long admittedAt) {
+            this.client = client;
+            this.admittedAt = admittedAt;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            totalHoldNanos.addAndGet(System.nanoTime() - admittedAt);
+            released.incrementAndGet();
+            releaseClient(client);
+            slots.release();
+        }
+    }
+
+    static final class RejectedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int retryAfterSeconds;
+
+        RejectedException(String message, int retryAfterSeconds) {
+            super(message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+    }
+}
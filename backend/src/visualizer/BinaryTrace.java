@@ -0,0 +1,382 @@
+package visualizer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact binary form of the JSON responses of {@code /run} and {@code /run/stream}, sent to clients that
+ * list {@link #MEDIA_TYPE} in {@code Accept}. It is a transcoding of the JSON bytes, so cached traces and
+ * streamed events convert the same way as freshly written responses. Keys and short strings (ref ids,
+ * variable names, kinds) enter a string table the first time they are sent and are sent as their index
+ * after that; integers are zigzag varints, and arrays of integers (most heap arrays) are packed as the
+ * differences between neighbours. The decoder in {@code src/trace.ts} produces the same values as
+ * {@code JSON.parse}.
+ *
+ * <p>Layout: {@code VTB1}, then values. A value is a tag byte and its payload: a varint for INT, 8
+ * little-endian bytes for DOUBLE, a varint byte length and UTF-8 for STRING and STRING_NEW (which also
+ * appends to the table), a varint table index for STRING_REF. ARRAY and OBJECT are followed by their
+ * items up to END; an object's items alternate key and value. INT_ARRAY is a varint count and then each
+ * item minus the one before it (the first minus 0) as a zigzag varint. A stream is a sequence of values.
+ */
+final class BinaryTrace {
+    static final String MEDIA_TYPE = "application/x-visualizer-trace";
+
+    static final byte NULL = 0;
+    static final byte FALSE = 1;
+    static final byte TRUE = 2;
+    static final byte INT = 3;
+    static final byte DOUBLE = 4;
+    static final byte STRING = 5;
+    static final byte STRING_NEW = 6;
+    static final byte STRING_REF = 7;
+    static final byte ARRAY = 8;
+    static final byte OBJECT = 9;
+    static final byte END = 10;
+    static final byte INT_ARRAY = 11;
+
+    private static final byte[] MAGIC = {'V', 'T', 'B', '1'};
+    private static final int MAX_INTERNED_BYTES = 64;
+    private static final int MAX_STRINGS = 1 << 16;
+    // Larger integers go out as doubles, which is what JSON.parse makes of them too. Packed items are kept
+    // smaller so their differences also stay exact in a JavaScript number.
+    private static final long MAX_INT = 1L << 52;
+    private static final long MAX_PACKED = 1L << 51;
+
+    private BinaryTrace() {
+    }
+
+    /** Whether an {@code Accept} header lists this format; {@code q=0} refuses it. */
+    static boolean accepted(String accept) {
+        if (accept == null) {
+            return false;
+        }
+        for (String range : accept.split(",")) {
+            String[] parts = range.split(";");
+            if (!parts[0].trim().equalsIgnoreCase(MEDIA_TYPE)) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=") && parameter.substring(2).matches("0(\\.0*)?")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /** Takes JSON and writes it on in the binary form. The string table spans everything written, so use one per response. */
+    static final class Encoder extends OutputStream {
+        private static final int BETWEEN = 0;
+        private static final int IN_STRING = 1;
+        private static final int IN_NUMBER = 2;
+
+        private final OutputStream out;
+        private final byte[] buffer = new byte[8 * 1024];
+        private final Map<String, Integer> strings = new HashMap<>();
+        private byte[] token = new byte[256];
+        // Items of the innermost open array while they are all integers; it is written once it closes.
+        private long[] packed = new long[64];
+        private int packedCount;
+        private boolean packing;
+        private int position;
+        private int tokenLength;
+        private int state;
+        private boolean escaped;
+        private boolean hasEscapes;
+        // Letters left of a true, false or null that has already been written.
+        private int skip;
+
+        Encoder(OutputStream out) {
+            this.out = out;
+            System.arraycopy(MAGIC, 0, buffer, 0, MAGIC.length);
+            position = MAGIC.length;
+        }
+
+        @Override
+        public void write(int value) throws IOException {
+            accept((byte) value);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                accept(data[i]);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (state == IN_NUMBER) {
+                endNumber();
+            }
+            drain();
+            out.close();
+        }
+
+        private void accept(byte value) throws IOException {
+            if (state == IN_STRING) {
+                if (escaped) {
+                    escaped = false;
+                    append(value);
+                } else if (value == '"') {
+                    endString();
+                } else {
+                    if (value == '\\') {
+                        escaped = true;
+                        hasEscapes = true;
+                    }
+                    append(value);
+                }
+                return;
+            }
+            if (skip > 0) {
+                skip--;
+                return;
+            }
+            if (state == IN_NUMBER) {
+                if ((value >= '0' && value <= '9') || value == '.' || value == 'e' || value == 'E' || value == '+' || value == '-') {
+                    append(value);
+                    return;
+                }
+                endNumber();
+            }
+            switch (value) {
+                case '{':
+                    unpack();
+                    put(OBJECT);
+                    break;
+                case '[':
+                    unpack();
+                    packing = true;
+                    packedCount = 0;
+                    break;
+                case '}':
+                    put(END);
+                    break;
+                case ']':
+                    if (packing) {
+                        writePacked();
+                    } else {
+                        put(END);
+                    }
+                    break;
+                case '"':
+                    unpack();
+                    state = IN_STRING;
+                    tokenLength = 0;
+                    hasEscapes = false;
+                    break;
+                case 't':
+                    unpack();
+                    put(TRUE);
+                    skip = 3;
+                    break;
+                case 'f':
+                    unpack();
+                    put(FALSE);
+                    skip = 4;
+                    break;
+                case 'n':
+                    unpack();
+                    put(NULL);
+                    skip = 3;
+                    break;
+                default:
+                    // Commas, colons and whitespace carry nothing the tags do not.
+                    if (value == '-' || (value >= '0' && value <= '9')) {
+                        state = IN_NUMBER;
+                        tokenLength = 0;
+                        append(value);
+                    }
+                    break;
+            }
+        }
+
+        private void endString() throws IOException {
+            state = BETWEEN;
+            byte[] utf8 = token;
+            int length = tokenLength;
+            String value = null;
+            if (hasEscapes) {
+                value = unescape(new String(token, 0, tokenLength, StandardCharsets.UTF_8));
+                utf8 = value.getBytes(StandardCharsets.UTF_8);
+                length = utf8.length;
+            }
+            if (length > MAX_INTERNED_BYTES) {
+                put(STRING);
+            } else {
+                if (value == null) {
+                    value = new String(token, 0, tokenLength, StandardCharsets.UTF_8);
+                }
+                Integer index = strings.get(value);
+                if (index != null) {
+                    put(STRING_REF);
+                    varint(index);
+                    return;
+                }
+                if (strings.size() < MAX_STRINGS) {
+                    strings.put(value, strings.size());
+                    put(STRING_NEW);
+                } else {
+                    put(STRING);
+                }
+            }
+            varint(length);
+            putBytes(utf8, length);
+        }
+
+        private void endNumber() throws IOException {
+            state = BETWEEN;
+            long integer = 0;
+            boolean integral = tokenLength <= 18;
+            int start = token[0] == '-' ? 1 : 0;
+            for (int i = start; i < tokenLength && integral; i++) {
+                byte digit = token[i];
+                integral = digit >= '0' && digit <= '9';
+                integer = integer * 10 + (digit - '0');
+            }
+            integral &= tokenLength > start;
+            long value = start == 1 ? -integer : integer;
+            if (packing && integral && integer < MAX_PACKED) {
+                if (packedCount == packed.length) {
+                    long[] grown = new long[packed.length * 2];
+                    System.arraycopy(packed, 0, grown, 0, packedCount);
+                    packed = grown;
+                }
+                packed[packedCount++] = value;
+                return;
+            }
+            unpack();
+            if (integral && integer < MAX_INT) {
+                put(INT);
+                varint(zigzag(value));
+                return;
+            }
+            long bits = Double.doubleToRawLongBits(Double.parseDouble(new String(token, 0, tokenLength, StandardCharsets.ISO_8859_1)));
+            put(DOUBLE);
+            for (int i = 0; i < 8; i++) {
+                put((byte) (bits >>> (8 * i)));
+            }
+        }
+
+        // The open array turned out not to be all integers: write it as a plain array so far.
+        private void unpack() throws IOException {
+            if (!packing) {
+                return;
+            }
+            packing = false;
+            put(ARRAY);
+            for (int i = 0; i < packedCount; i++) {
+                put(INT);
+                varint(zigzag(packed[i]));
+            }
+        }
+
+        private void writePacked() throws IOException {
+            packing = false;
+            put(INT_ARRAY);
+            varint(packedCount);
+            long previous = 0;
+            for (int i = 0; i < packedCount; i++) {
+                varint(zigzag(packed[i] - previous));
+                previous = packed[i];
+            }
+        }
+
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        private static String unescape(String raw) {
+            StringBuilder value = new StringBuilder(raw.length());
+            for (int i = 0; i < raw.length(); i++) {
+                char ch = raw.charAt(i);
+                if (ch != '\\' || i + 1 == raw.length()) {
+                    value.append(ch);
+                    continue;
+                }
+                char escape = raw.charAt(++i);
+                switch (escape) {
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'u':
+                        value.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+                        i += 4;
+                        break;
+                    default:
+                        value.append(escape);
+                        break;
+                }
+            }
+            return value.toString();
+        }
+
+        private void append(byte value) {
+            if (tokenLength == token.length) {
+                byte[] grown = new byte[token.length * 2];
+                System.arraycopy(token, 0, grown, 0, tokenLength);
+                token = grown;
+            }
+            token[tokenLength++] = value;
+        }
+
+        private void varint(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            put((byte) value);
+        }
+
+        private void put(byte value) throws IOException {
+            if (position == buffer.length) {
+                drain();
+            }
+            buffer[position++] = value;
+        }
+
+        private void putBytes(byte[] data, int length) throws IOException {
+            if (length > buffer.length - position) {
+                drain();
+                if (length > buffer.length) {
+                    out.write(data, 0, length);
+                    return;
+                }
+            }
+            System.arraycopy(data, 0, buffer, position, length);
+            position += length;
+        }
+
+        private void drain() throws IOException {
+            if (position > 0) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+        }
+    }
+}
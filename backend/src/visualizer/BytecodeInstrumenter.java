@@ -0,0 +1,205 @@
+package visualizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Rewrites the traced classes for the instrumented engine. At the start of every source line, each method
+ * calls {@link TraceRecorder#line} with the line number and the boxed locals in scope there, as the local
+ * variable table (compiled with {@code -g}) describes them. A per-method "last line" local skips repeated
+ * line-table entries for the same line, so a loop header reports once per iteration, as JDI line steps do;
+ * after a call into traced code returns, the caller's line is reported again, as JDI steps stop there too.
+ * Uses ASM and its tree API, vendored as jars in {@code lib/} and bundled into the server jar by the build.
+ */
+final class BytecodeInstrumenter {
+    private static final String RECORDER = Type.getInternalName(TraceRecorder.class);
+    private static final String LINE_DESCRIPTOR = "(ILjava/lang/String;[Ljava/lang/Object;)V";
+
+    private BytecodeInstrumenter() {
+    }
+
+    /** Writes instrumented copies of the classes in {@code classDir} that belong to {@code targetClass} into {@code outputDir}. */
+    static void instrument(Path classDir, String targetClass, Path outputDir) throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(classDir)) {
+            files = walk.filter(file -> file.toString().endsWith(".class") && !file.startsWith(outputDir)).toList();
+        }
+        try (URLClassLoader loader = new URLClassLoader(new URL[] {classDir.toUri().toURL()}, ClassLoader.getPlatformClassLoader())) {
+            for (Path file : files) {
+                Path target = outputDir.resolve(classDir.relativize(file).toString());
+                Files.createDirectories(target.getParent());
+                String className = classDir.relativize(file).toString().replace(File.separatorChar, '.');
+                className = className.substring(0, className.length() - ".class".length());
+                if (className.startsWith(targetClass)) {
+                    Files.write(target, instrument(Files.readAllBytes(file), targetClass, loader));
+                } else {
+                    Files.copy(file, target);
+                }
+            }
+        }
+    }
+
+    static byte[] instrument(byte[] classFile, String targetClass, ClassLoader loader) {
+        ClassNode type = new ClassNode();
+        new ClassReader(classFile).accept(type, ClassReader.EXPAND_FRAMES);
+        String traced = targetClass.replace('.', '/');
+        for (MethodNode method : type.methods) {
+            if ((method.access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE | Opcodes.ACC_BRIDGE)) == 0) {
+                instrument(method, traced);
+            }
+        }
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS) {
+            // Frame computation loads user classes to find common supertypes; the JDK's are reachable from the parent.
+            @Override
+            protected ClassLoader getClassLoader() {
+                return loader;
+            }
+        };
+        type.accept(writer);
+        return writer.toByteArray();
+    }
+
+    private static void instrument(MethodNode method, String traced) {
+        InsnList code = method.instructions;
+        // Line starts and returns from traced calls; scopes are resolved before anything is inserted.
+        List<AbstractInsnNode> points = new ArrayList<>();
+        List<Integer> lines = new ArrayList<>();
+        List<List<LocalVariableNode>> visible = new ArrayList<>();
+        int line = -1;
+        for (AbstractInsnNode node : code) {
+            if (node instanceof LineNumberNode) {
+                line = ((LineNumberNode) node).line;
+            } else if (!(node instanceof MethodInsnNode && line >= 0 && ((MethodInsnNode) node).owner.startsWith(traced))) {
+                continue;
+            }
+            points.add(node);
+            lines.add(line);
+            visible.add(visibleAt(method, code.indexOf(node instanceof LineNumberNode ? ((LineNumberNode) node).start : node)));
+        }
+        if (points.isEmpty()) {
+            return;
+        }
+        int lastLine = method.maxLocals;
+        for (int i = 0; i < points.size(); i++) {
+            InsnList report = report(lines.get(i), visible.get(i), lastLine);
+            if (points.get(i) instanceof MethodInsnNode) {
+                report.insert(new VarInsnNode(Opcodes.ISTORE, lastLine));
+                report.insert(new InsnNode(Opcodes.ICONST_M1));
+            }
+            code.insert(points.get(i), report);
+        }
+        InsnList entry = new InsnList();
+        entry.add(new InsnNode(Opcodes.ICONST_M1));
+        entry.add(new VarInsnNode(Opcodes.ISTORE, lastLine));
+        code.insert(entry);
+        method.maxLocals++;
+    }
+
+    private static List<LocalVariableNode> visibleAt(MethodNode method, int index) {
+        List<LocalVariableNode> visible = new ArrayList<>();
+        if (method.localVariables == null) {
+            return visible;
+        }
+        for (LocalVariableNode local : method.localVariables) {
+            if (local.name.equals("this")) {
+                continue;
+            }
+            InsnList code = method.instructions;
+            if (code.indexOf(local.start) <= index && index < code.indexOf(local.end)) {
+                visible.add(local);
+            }
+        }
+        // Slot order, which is declaration order, like JDI's visible variables.
+        visible.sort((left, right) -> Integer.compare(left.index, right.index));
+        return visible;
+    }
+
+    // if (lastLine != line) { lastLine = line; TraceRecorder.line(line, names, new Object[] {locals}); }
+    private static InsnList report(int line, List<LocalVariableNode> locals, int lastLine) {
+        InsnList code = new InsnList();
+        LabelNode skip = new LabelNode();
+        code.add(new VarInsnNode(Opcodes.ILOAD, lastLine));
+        code.add(new LdcInsnNode(line));
+        code.add(new JumpInsnNode(Opcodes.IF_ICMPEQ, skip));
+        code.add(new LdcInsnNode(line));
+        code.add(new VarInsnNode(Opcodes.ISTORE, lastLine));
+        code.add(new LdcInsnNode(line));
+        StringBuilder names = new StringBuilder();
+        for (LocalVariableNode local : locals) {
+            names.append(names.length() == 0 ? "" : ",").append(local.name);
+        }
+        code.add(new LdcInsnNode(names.toString()));
+        code.add(new LdcInsnNode(locals.size()));
+        code.add(new TypeInsnNode(Opcodes.ANEWARRAY, "java/lang/Object"));
+        for (int i = 0; i < locals.size(); i++) {
+            code.add(new InsnNode(Opcodes.DUP));
+            code.add(new LdcInsnNode(i));
+            load(code, locals.get(i));
+            code.add(new InsnNode(Opcodes.AASTORE));
+        }
+        code.add(new MethodInsnNode(Opcodes.INVOKESTATIC, RECORDER, "line", LINE_DESCRIPTOR, false));
+        code.add(skip);
+        return code;
+    }
+
+    private static void load(InsnList code, LocalVariableNode local) {
+        switch (local.desc.charAt(0)) {
+            case 'I':
+                box(code, Opcodes.ILOAD, local.index, "java/lang/Integer", "I");
+                break;
+            case 'S':
+                box(code, Opcodes.ILOAD, local.index, "java/lang/Short", "S");
+                break;
+            case 'B':
+                box(code, Opcodes.ILOAD, local.index, "java/lang/Byte", "B");
+                break;
+            case 'C':
+                box(code, Opcodes.ILOAD, local.index, "java/lang/Character", "C");
+                break;
+            case 'Z':
+                box(code, Opcodes.ILOAD, local.index, "java/lang/Boolean", "Z");
+                break;
+            case 'J':
+                box(code, Opcodes.LLOAD, local.index, "java/lang/Long", "J");
+                break;
+            case 'F':
+                box(code, Opcodes.FLOAD, local.index, "java/lang/Float", "F");
+                break;
+            case 'D':
+                box(code, Opcodes.DLOAD, local.index, "java/lang/Double", "D");
+                break;
+            default:
+                code.add(new VarInsnNode(Opcodes.ALOAD, local.index));
+                break;
+        }
+    }
+
+    private static void box(InsnList code, int load, int slot, String owner, String primitive) {
+        code.add(new VarInsnNode(load, slot));
+        code.add(new MethodInsnNode(Opcodes.INVOKESTATIC, owner, "valueOf", "(" + primitive + ")L" + owner + ";", false));
+    }
+}
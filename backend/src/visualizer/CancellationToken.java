@@ -0,0 +1,99 @@
+package visualizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cooperative cancellation for one request and its stages. A stage takes a {@link #child} with its own
+ * deadline and registers callbacks that release what it holds (a compile future, a launching process, a
+ * debuggee JVM); cancelling a token runs its callbacks and cancels every child.
+ */
+final class CancellationToken implements AutoCloseable {
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cancellation-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<Runnable> callbacks = new ArrayList<>();
+    private volatile String reason;
+    private ScheduledFuture<?> timer;
+    private Registration parentRegistration;
+
+    CancellationToken child(long timeoutMillis, String timeoutReason) {
+        CancellationToken child = new CancellationToken();
+        child.parentRegistration = onCancel(() -> child.cancel(reason));
+        if (timeoutMillis > 0) {
+            // Callbacks may block (killing a JVM), so they run on their own thread rather than the timer's.
+            child.timer = TIMER.schedule(() -> Thread.startVirtualThread(() -> child.cancel(timeoutReason)), timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        return child;
+    }
+
+    void cancel(String why) {
+        List<Runnable> pending;
+        synchronized (callbacks) {
+            if (reason != null) {
+                return;
+            }
+            reason = why;
+            pending = new ArrayList<>(callbacks);
+            callbacks.clear();
+        }
+        for (Runnable callback : pending) {
+            try {
+                callback.run();
+            } catch (RuntimeException ex) {
+                System.err.println("Cancellation callback failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    boolean isCancelled() {
+        return reason != null;
+    }
+
+    void throwIfCancelled() {
+        String why = reason;
+        if (why != null) {
+            throw new CancellationException(why);
+        }
+    }
+
+    Registration onCancel(Runnable callback) {
+        synchronized (callbacks) {
+            if (reason == null) {
+                callbacks.add(callback);
+                return () -> {
+                    synchronized (callbacks) {
+                        callbacks.remove(callback);
+                    }
+                };
+            }
+        }
+        callback.run();
+        return () -> {
+        };
+    }
+
+    // Ends the stage: stops its deadline timer and detaches it from the parent.
+    @Override
+    public void close() {
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        if (parentRegistration != null) {
+            parentRegistration.close();
+        }
+    }
+
+    interface Registration extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
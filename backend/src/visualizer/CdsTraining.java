@@ -0,0 +1,106 @@
+package visualizer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Training run for the class data sharing archives. Started under {@code -XX:ArchiveClassesAtExit} it
+ * compiles, traces with both engines and serializes a few typical programs, so the server's archive holds
+ * javac, JDI, the instrumenter and the trace writers. The same programs also run in a debuggee JVM that
+ * dumps the debuggee archive when it exits. Archives only apply to the JDK and the class path jar they
+ * were created with.
+ */
+public final class CdsTraining {
+    private static final String[][] SAMPLES = {
+            {"public void moveZeroes(int[] nums) {\n  int w = 0;\n  for (int r = 0; r < nums.length; r++) {\n    if (nums[r] != 0) {\n"
+                    + "      int t = nums[w];\n      nums[w] = nums[r];\n      nums[r] = t;\n      w++;\n    }\n  }\n}",
+                    "nums = [0,1,0,3,12]"},
+            {"class Solution {\n  static class Node { int val; Node next; Node(int v) { val = v; } }\n  public int reverse(int n) {\n"
+                    + "    Node head = null;\n    for (int i = 0; i < n; i++) {\n      Node node = new Node(i);\n      node.next = head;\n"
+                    + "      head = node;\n    }\n    Node prev = null;\n    while (head != null) {\n      Node next = head.next;\n"
+                    + "      head.next = prev;\n      prev = head;\n      head = next;\n    }\n    return prev.val;\n  }\n}",
+                    "n = 4"},
+            {"class Solution {\n  static class TreeNode { int val; TreeNode left, right; TreeNode(int v) { val = v; } }\n"
+                    + "  public int depth(int[] values) {\n    TreeNode root = null;\n    for (int v : values) root = insert(root, v);\n"
+                    + "    return height(root);\n  }\n  TreeNode insert(TreeNode node, int v) {\n    if (node == null) return new TreeNode(v);\n"
+                    + "    if (v < node.val) node.left = insert(node.left, v); else node.right = insert(node.right, v);\n    return node;\n  }\n"
+                    + "  int height(TreeNode node) {\n    return node == null ? 0 : 1 + Math.max(height(node.left), height(node.right));\n  }\n}",
+                    "values = [5,3,8,1,4]"},
+            {"public String groupWords(String[] words, double scale) {\n  Map<Integer, List<String>> byLength = new HashMap<>();\n"
+                    + "  for (String word : words) {\n    byLength.computeIfAbsent(word.length(), k -> new ArrayList<>()).add(word);\n  }\n"
+                    + "  long total = Arrays.stream(words).mapToInt(String::length).sum();\n"
+                    + "  return byLength.keySet().stream().sorted().map(String::valueOf).collect(Collectors.joining(\",\")) + (total * scale);\n}",
+                    "words = [a,bb,cc,ddd], scale = 1.5"},
+    };
+
+    private CdsTraining() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: CdsTraining <debuggee-archive.jsa>");
+            System.exit(2);
+        }
+        // Debuggees are launched per trace and none are left idle, so the JVM can exit and dump its archive.
+        System.setProperty("visualizer.pool.size", "0");
+        Path archive = Path.of(args[0]).toAbsolutePath();
+        Files.createDirectories(archive.getParent());
+        Files.deleteIfExists(archive);
+
+        List<JavaTracer.Program> programs = new ArrayList<>();
+        try {
+            for (String[] sample : SAMPLES) {
+                programs.add(JavaTracer.prepare(sample[0], Collections.singletonList(sample[1])));
+            }
+            trainDebuggee(archive, programs);
+            for (int i = 0; i < programs.size(); i++) {
+                List<TraceModels.Step> trace = JavaTracer.ENGINE.trace(programs.get(i), 0, SAMPLES[i][1], Sampling.FULL, new CancellationToken());
+                InstrumentedTracer.ENGINE.trace(programs.get(i), 0, SAMPLES[i][1], Sampling.FULL, new CancellationToken());
+                try (JsonWriter writer = new JsonWriter(OutputStream.nullOutputStream())) {
+                    writer.value(TraceModels.inputCase("input-1", "Input 1", SAMPLES[i][1], trace));
+                    writer.value(TraceCache.serialize(TraceDelta.encode(trace, 50)));
+                }
+            }
+        } finally {
+            for (JavaTracer.Program program : programs) {
+                program.close();
+            }
+        }
+        System.out.println("Debuggee archive: " + archive + " (" + Files.size(archive) + " bytes)");
+        System.exit(0);
+    }
+
+    // Runs every sample in one debuggee, named on its command line, after which the bootstrap returns and the
+    // JVM dumps. CDS dumping refuses native agents, so this JVM runs without JDWP; the archive still maps under
+    // it. The samples are all harnessed and read nothing from stdin.
+    private static void trainDebuggee(Path archive, List<JavaTracer.Program> programs) throws IOException, InterruptedException {
+        List<String> command = LaunchProfile.CURRENT.command(Path.of(System.getProperty("java.home"), "bin", "java").toString(), false);
+        command.add("-XX:ArchiveClassesAtExit=" + archive);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(DebuggeeBootstrap.class.getName());
+        for (JavaTracer.Program program : programs) {
+            command.add(program.classDir.toString());
+            command.add(program.build.mainClassName(0));
+        }
+        Process process = new ProcessBuilder(command)
+                .redirectInput(ProcessBuilder.Redirect.PIPE)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        process.getOutputStream().close();
+        if (!process.waitFor(60, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+            throw new IOException("Debuggee training run did not exit");
+        }
+        if (process.exitValue() != 0 || !Files.isRegularFile(archive)) {
+            throw new IOException("Debuggee training run failed with exit code " + process.exitValue());
+        }
+    }
+}
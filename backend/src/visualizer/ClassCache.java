@@ -0,0 +1,41 @@
+package visualizer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+final class ClassCache {
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<String, InMemoryCompiler.CompiledClasses> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    ClassCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized InMemoryCompiler.CompiledClasses get(String key) {
+        return entries.get(key);
+    }
+
+    synchronized void put(String key, InMemoryCompiler.CompiledClasses classes) {
+        if (maxEntries <= 0 || classes.size > maxBytes) {
+            return;
+        }
+        InMemoryCompiler.CompiledClasses previous = entries.put(key, classes);
+        if (previous != null) {
+            totalBytes -= previous.size;
+        }
+        totalBytes += classes.size;
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, InMemoryCompiler.CompiledClasses>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || totalBytes > maxBytes) && iterator.hasNext()) {
+            totalBytes -= iterator.next().getValue().size;
+            iterator.remove();
+        }
+    }
+}
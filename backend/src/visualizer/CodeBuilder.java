@@ -1,7 +1,10 @@
 package visualizer;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -14,12 +17,12 @@ final class CodeBuilder {
     private CodeBuilder() {
     }
 
-    static BuildResult build(String code, String input) {
+    static BuildResult build(String code, List<String> inputs) {
         String className = extractClassName(code);
         boolean hasMain = MAIN_PATTERN.matcher(code).find();
         if (className != null && hasMain) {
             String fullCode = addImports(code);
-            return BuildResult.direct(className, fullCode);
+            return BuildResult.direct(className, fullCode, inputs.size());
         }
 
         String solutionClass = className != null ? className : "Solution";
@@ -29,8 +32,16 @@ final class CodeBuilder {
         }
 
         String solutionCode = className != null ? addImports(code) : wrapInSolution(code, solutionClass);
-        String mainCode = buildMain(solutionClass, method, input);
-        return BuildResult.wrapper(solutionClass, solutionCode, mainCode);
+        Map<String, String> harnesses = new LinkedHashMap<>();
+        for (int i = 0; i < inputs.size(); i++) {
+            String harnessClass = harnessName(i);
+            harnesses.put(harnessClass, buildMain(harnessClass, solutionClass, method, inputs.get(i)));
+        }
+        return BuildResult.wrapper(solutionClass, solutionCode, harnesses);
+    }
+
+    private static String harnessName(int index) {
+        return index == 0 ? "Main" : "Main" + (index + 1);
     }
 
     private static String addImports(String code) {
@@ -104,10 +115,10 @@ final class CodeBuilder {
         return "import java.util.*;\nimport java.util.stream.*;\n\npublic class " + className + " {\n" + code + "\n}\n";
     }
 
-    private static String buildMain(String solutionClass, MethodSig method, String input) {
+    private static String buildMain(String harnessClass, String solutionClass, MethodSig method, String input) {
         List<String> argExpr = InputParser.buildArguments(method.params, input);
         String invocation = buildInvocation(method.returnType, solutionClass, method.name, argExpr);
-        return "public class Main {\n" +
+        return "public class " + harnessClass + " {\n" +
                 "  public static void main(String[] args) throws Exception {\n" +
                 "    " + solutionClass + " solution = new " + solutionClass + "();\n" +
                 "    " + invocation + "\n" +
@@ -147,25 +158,40 @@ final class CodeBuilder {
 
     static final class BuildResult {
         final boolean isDirect;
-        final String mainClassName;
         final String primaryClassName;
         final String primaryCode;
-        final String mainCode;
+        final List<String> mainClassNames;
+        final Map<String, String> harnessCode;
 
-        private BuildResult(boolean isDirect, String mainClassName, String primaryClassName, String primaryCode, String mainCode) {
+        private BuildResult(boolean isDirect, String primaryClassName, String primaryCode, List<String> mainClassNames, Map<String, String> harnessCode) {
             this.isDirect = isDirect;
-            this.mainClassName = mainClassName;
             this.primaryClassName = primaryClassName;
             this.primaryCode = primaryCode;
-            this.mainCode = mainCode;
+            this.mainClassNames = mainClassNames;
+            this.harnessCode = harnessCode;
+        }
+
+        String mainClassName(int inputIndex) {
+            return mainClassNames.get(inputIndex);
+        }
+
+        String cacheKey() {
+            List<String> parts = new ArrayList<>();
+            parts.add(primaryClassName);
+            parts.add(primaryCode);
+            for (Map.Entry<String, String> entry : harnessCode.entrySet()) {
+                parts.add(entry.getKey());
+                parts.add(entry.getValue());
+            }
+            return Digests.sha256(parts.toArray(new String[0]));
         }
 
-        static BuildResult direct(String className, String code) {
-            return new BuildResult(true, className, className, code, null);
+        static BuildResult direct(String className, String code, int inputCount) {
+            return new BuildResult(true, className, code, Collections.nCopies(inputCount, className), Collections.emptyMap());
         }
 
-        static BuildResult wrapper(String primaryClass, String primaryCode, String mainCode) {
-            return new BuildResult(false, "Main", primaryClass, primaryCode, mainCode);
+        static BuildResult wrapper(String primaryClass, String primaryCode, Map<String, String> harnessCode) {
+            return new BuildResult(false, primaryClass, primaryCode, new ArrayList<>(harnessCode.keySet()), harnessCode);
         }
     }
 }
@@ -0,0 +1,182 @@
+package visualizer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+/**
+ * gzip and deflate response bodies. Responses are compressed as they are written, with a sync flush
+ * whenever the writer flushes, so stream events still go out one by one. Cached traces keep a deflated copy
+ * of their JSON, made once when they are cached; {@link Output#writeDeflated} splices it into a response
+ * instead of compressing the same bytes again on every hit.
+ */
+final class Compression {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    // 0 turns compression off.
+    static final int LEVEL = Math.max(0, Math.min(9, Settings.intValue("compression.level", 6)));
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private Compression() {
+    }
+
+    /** The encoding to answer an {@code Accept-Encoding} header with, or null to send the body as it is. */
+    static String negotiate(String acceptEncoding) {
+        if (LEVEL == 0 || acceptEncoding == null) {
+            return null;
+        }
+        // Each is null until named; "*" only covers codings that are not named, whatever the order.
+        Boolean gzip = null;
+        Boolean deflate = null;
+        boolean wildcard = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            boolean refused = false;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                refused |= parameter.startsWith("q=") && parameter.substring(2).matches("0(\\.0*)?");
+            }
+            if (name.equalsIgnoreCase(GZIP)) {
+                gzip = !refused;
+            } else if (name.equalsIgnoreCase(DEFLATE)) {
+                deflate = !refused;
+            } else if (name.equals("*")) {
+                wildcard = !refused;
+            }
+        }
+        if (gzip != null ? gzip : wildcard) {
+            return GZIP;
+        }
+        return (deflate != null ? deflate : wildcard) ? DEFLATE : null;
+    }
+
+    /**
+     * Raw deflate data for {@code json} that starts from an empty window and ends on a byte boundary without
+     * a final block, so it can be spliced into any deflate stream. Null when compression is off.
+     */
+    static ByteBuffer deflate(ByteBuffer json) {
+        if (LEVEL == 0) {
+            return null;
+        }
+        Deflater deflater = new Deflater(LEVEL, true);
+        try {
+            deflater.setInput(json.duplicate());
+            // Deflated on the heap and copied once into direct memory of the exact size.
+            byte[] deflated = new byte[Math.max(64, json.remaining() / 4)];
+            int length = 0;
+            while (true) {
+                length += deflater.deflate(deflated, length, deflated.length - length, Deflater.SYNC_FLUSH);
+                if (length < deflated.length) {
+                    break;
+                }
+                deflated = Arrays.copyOf(deflated, deflated.length * 2);
+            }
+            return StepBuffer.allocate(length).put(deflated, 0, length).flip();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** A gzip or zlib ("deflate") body around one raw deflate stream. */
+    static final class Output extends OutputStream {
+        private final OutputStream out;
+        private final boolean gzip;
+        private final Deflater deflater;
+        private final Checksum checksum;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private long length;
+        private boolean closed;
+
+        Output(OutputStream out, String encoding) throws IOException {
+            this.out = out;
+            this.gzip = GZIP.equals(encoding);
+            this.deflater = new Deflater(LEVEL, true);
+            this.checksum = gzip ? new CRC32() : new Adler32();
+            if (gzip) {
+                out.write(new byte[] {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+            } else {
+                out.write(new byte[] {0x78, (byte) 0x9c});
+            }
+        }
+
+        @Override
+        public void write(int value) throws IOException {
+            write(new byte[] {(byte) value}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int count) throws IOException {
+            if (count == 0) {
+                return;
+            }
+            checksum.update(data, offset, count);
+            length += count;
+            deflater.setInput(data, offset, count);
+            while (!deflater.needsInput()) {
+                int produced = deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH);
+                out.write(buffer, 0, produced);
+            }
+        }
+
+        /**
+         * Writes {@code json} by copying in {@code deflated}, its output from {@link Compression#deflate}. A full
+         * flush first ends everything written so far on a byte boundary and clears the window, so nothing
+         * later refers back across the spliced bytes, which this deflater never saw.
+         */
+        void writeDeflated(ByteBuffer deflated, ByteBuffer json) throws IOException {
+            drain(Deflater.FULL_FLUSH);
+            length += json.remaining();
+            checksum.update(json);
+            while (deflated.hasRemaining()) {
+                int count = Math.min(buffer.length, deflated.remaining());
+                deflated.get(buffer, 0, count);
+                out.write(buffer, 0, count);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain(Deflater.SYNC_FLUSH);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int produced = deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH);
+                    out.write(buffer, 0, produced);
+                }
+                long value = checksum.getValue();
+                if (gzip) {
+                    out.write(new byte[] {(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24),
+                            (byte) length, (byte) (length >> 8), (byte) (length >> 16), (byte) (length >> 24)});
+                } else {
+                    out.write(new byte[] {(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value});
+                }
+                out.close();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private void drain(int flush) throws IOException {
+            int produced;
+            do {
+                produced = deflater.deflate(buffer, 0, buffer.length, flush);
+                out.write(buffer, 0, produced);
+            } while (produced == buffer.length);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package visualizer;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Entry point of pooled debuggee JVMs. Each JVM runs one program: the main thread stops in
+ * {@link #awaitRun()}, where the tracer keeps a breakpoint and sets {@link #classDir} and {@link #mainClass}
+ * through JDI, so the run command never passes through stdin, which belongs to the traced program. The
+ * program is loaded into its own class loader and completion is reported through {@link #finished(String)},
+ * where the tracer keeps another breakpoint. Only this class is loaded from the server classpath; user code
+ * sees the platform loader.
+ *
+ * <p>Started with arguments instead ({@code classDir mainClass} pairs), it runs those programs one after
+ * another without waiting for a tracer; the CDS training uses this.
+ */
+public final class DebuggeeBootstrap {
+    private static String classDir;
+    private static String mainClass;
+
+    private DebuggeeBootstrap() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 0) {
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                run(args[i], args[i + 1]);
+            }
+            return;
+        }
+        awaitRun();
+        if (classDir != null && mainClass != null) {
+            finished(run(classDir, mainClass));
+        }
+    }
+
+    static void awaitRun() {
+        // Breakpoint target for the tracer, which fills in classDir and mainClass before resuming.
+    }
+
+    private static String run(String classDir, String mainClass) {
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        try (URLClassLoader loader = new URLClassLoader(new URL[] {new File(classDir).toURI().toURL()}, ClassLoader.getPlatformClassLoader())) {
+            thread.setContextClassLoader(loader);
+            Class<?> type = Class.forName(mainClass, true, loader);
+            type.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+            return null;
+        } catch (InvocationTargetException ex) {
+            return describe(ex.getCause() != null ? ex.getCause() : ex);
+        } catch (Throwable ex) {
+            return describe(ex);
+        } finally {
+            thread.setContextClassLoader(previous);
+            System.out.flush();
+            System.err.flush();
+        }
+    }
+
+    private static String describe(Throwable error) {
+        StringWriter writer = new StringWriter();
+        writer.append("Exception in thread \"main\" ");
+        error.printStackTrace(new PrintWriter(writer));
+        String text = writer.toString();
+        System.err.print(text);
+        return text;
+    }
+
+    static void finished(String error) {
+        // Breakpoint target for the tracer; the argument carries the uncaught exception, if any.
+    }
+}
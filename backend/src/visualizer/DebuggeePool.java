@@ -0,0 +1,313 @@
+package visualizer;
+
+import com.sun.jdi.Bootstrap;
+import com.sun.jdi.ClassType;
+import com.sun.jdi.Field;
+import com.sun.jdi.Method;
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.StringReference;
+import com.sun.jdi.ThreadReference;
+import com.sun.jdi.VirtualMachine;
+import com.sun.jdi.connect.AttachingConnector;
+import com.sun.jdi.connect.Connector;
+import com.sun.jdi.event.BreakpointEvent;
+import com.sun.jdi.event.ClassPrepareEvent;
+import com.sun.jdi.event.Event;
+import com.sun.jdi.event.EventSet;
+import com.sun.jdi.event.VMDeathEvent;
+import com.sun.jdi.event.VMDisconnectEvent;
+import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.ClassPrepareRequest;
+import com.sun.jdi.request.EventRequest;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+final class DebuggeePool {
+    private static final Pattern LISTENING_PATTERN = Pattern.compile("Listening for transport dt_socket at address: (?:.*:)?(\\d+)");
+    private static final String BOOTSTRAP_CLASS = DebuggeeBootstrap.class.getName();
+    private static final int POOL_SIZE = Math.max(0, Settings.intValue("pool.size", 2));
+    private static final int ATTACH_TIMEOUT_MILLIS = Settings.intValue("pool.attachTimeoutMillis", 10000);
+
+    private static final LinkedBlockingDeque<Debuggee> IDLE = new LinkedBlockingDeque<>();
+    private static final AtomicInteger PENDING = new AtomicInteger();
+    private static final ExecutorService LAUNCHER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "debuggee-pool");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private DebuggeePool() {
+    }
+
+    static void warmUp() {
+        refill();
+    }
+
+    static Debuggee borrow() throws IOException {
+        return borrow(new CancellationToken());
+    }
+
+    static Debuggee borrow(CancellationToken token) throws IOException {
+        try {
+            Debuggee debuggee;
+            while ((debuggee = IDLE.pollFirst()) != null) {
+                if (debuggee.isHealthy()) {
+                    return debuggee;
+                }
+                debuggee.destroy();
+            }
+            return launch(token);
+        } finally {
+            refill();
+        }
+    }
+
+    /**
+     * Ends a debuggee after its one run. A JVM that ran one user's program is never given to the next: its
+     * System streams, properties, locale and the static state of platform classes may all have been changed.
+     */
+    static void release(Debuggee debuggee) {
+        debuggee.destroy();
+        refill();
+    }
+
+    private static void refill() {
+        while (IDLE.size() + PENDING.get() < POOL_SIZE) {
+            PENDING.incrementAndGet();
+            LAUNCHER.execute(() -> {
+                try {
+                    Debuggee debuggee = launch(new CancellationToken());
+                    if (IDLE.size() < POOL_SIZE) {
+                        IDLE.offerLast(debuggee);
+                    } else {
+                        debuggee.destroy();
+                    }
+                } catch (Exception ex) {
+                    System.err.println("Failed to launch pooled debuggee: " + ex.getMessage());
+                } finally {
+                    PENDING.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    private static Debuggee launch(CancellationToken token) throws IOException {
+        List<String> command = LaunchProfile.CURRENT.command(Path.of(System.getProperty("java.home"), "bin", "java").toString(), true);
+        command.add("-agentlib:jdwp=transport=dt_socket,server=y,suspend=y,address=127.0.0.1:0");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(BOOTSTRAP_CLASS);
+        Process process = new ProcessBuilder(command).start();
+        CancellationToken stage = token.child(ATTACH_TIMEOUT_MILLIS, "Timed out starting the debuggee");
+        CancellationToken.Registration kill = stage.onCancel(process::destroyForcibly);
+        try {
+            Path cgroup = LaunchProfile.CURRENT.confine(process.pid());
+            if (cgroup != null) {
+                process.onExit().thenRun(() -> LaunchProfile.release(cgroup));
+            }
+            int port = readListeningPort(process.getInputStream());
+            Debuggee debuggee = new Debuggee(attach(port), process);
+            consumeStream(process.getInputStream(), System.out);
+            consumeStream(process.getErrorStream(), debuggee.stderr);
+            debuggee.initialize();
+            return debuggee;
+        } catch (Exception ex) {
+            process.destroyForcibly();
+            token.throwIfCancelled();
+            throw ex instanceof IOException ? (IOException) ex : new IOException("Could not start debuggee: " + ex.getMessage(), ex);
+        } finally {
+            kill.close();
+            stage.close();
+        }
+    }
+
+    private static int readListeningPort(InputStream stream) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int next;
+        while ((next = stream.read()) != -1) {
+            if (next != '\n') {
+                line.write(next);
+                continue;
+            }
+            Matcher matcher = LISTENING_PATTERN.matcher(line.toString(StandardCharsets.UTF_8).trim());
+            if (matcher.find()) {
+                return Integer.parseInt(matcher.group(1));
+            }
+            line.reset();
+        }
+        throw new IOException("Debuggee exited before opening its debug port");
+    }
+
+    private static VirtualMachine attach(int port) throws Exception {
+        AttachingConnector connector = findAttachingConnector();
+        Map<String, Connector.Argument> args = connector.defaultArguments();
+        args.get("hostname").setValue("127.0.0.1");
+        args.get("port").setValue(String.valueOf(port));
+        if (args.containsKey("timeout")) {
+            args.get("timeout").setValue(String.valueOf(ATTACH_TIMEOUT_MILLIS));
+        }
+        return connector.attach(args);
+    }
+
+    private static AttachingConnector findAttachingConnector() {
+        for (AttachingConnector connector : Bootstrap.virtualMachineManager().attachingConnectors()) {
+            if ("com.sun.jdi.SocketAttach".equals(connector.name())) {
+                return connector;
+            }
+        }
+        throw new IllegalStateException("Could not find socket attaching connector");
+    }
+
+    private static void consumeStream(InputStream stream, OutputStream target) {
+        Thread.ofVirtual().name("debuggee-output").start(() -> {
+            try {
+                stream.transferTo(target);
+            } catch (IOException ignored) {
+            }
+        });
+    }
+
+    static final class Debuggee {
+        final VirtualMachine vm;
+        final Process process;
+        final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        private BreakpointRequest finishedRequest;
+        private BreakpointRequest awaitRequest;
+        private ClassType bootstrapType;
+        // The bootstrap's main thread, suspended in awaitRun until start hands it a program.
+        private ThreadReference waiting;
+        private int baselineThreads;
+        private final AtomicBoolean destroyed = new AtomicBoolean();
+
+        private Debuggee(VirtualMachine vm, Process process) {
+            this.vm = vm;
+            this.process = process;
+        }
+
+        private void initialize() throws IOException, InterruptedException {
+            ClassPrepareRequest prepareRequest = vm.eventRequestManager().createClassPrepareRequest();
+            prepareRequest.addClassFilter(BOOTSTRAP_CLASS);
+            prepareRequest.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+            prepareRequest.enable();
+            vm.resume();
+
+            long deadline = System.currentTimeMillis() + ATTACH_TIMEOUT_MILLIS;
+            while (waiting == null) {
+                long remaining = deadline - System.currentTimeMillis();
+                EventSet eventSet = remaining > 0 ? vm.eventQueue().remove(remaining) : null;
+                if (eventSet == null) {
+                    throw new IOException("Timed out waiting for debuggee bootstrap");
+                }
+                boolean stopped = false;
+                for (Event event : eventSet) {
+                    if (event instanceof ClassPrepareEvent) {
+                        bootstrapType = (ClassType) ((ClassPrepareEvent) event).referenceType();
+                        finishedRequest = breakpoint(bootstrapType, "finished");
+                        awaitRequest = breakpoint(bootstrapType, "awaitRun");
+                    } else if (event instanceof BreakpointEvent && event.request() == awaitRequest) {
+                        // Left suspended until start.
+                        waiting = ((BreakpointEvent) event).thread();
+                        stopped = true;
+                    } else if (event instanceof VMDeathEvent || event instanceof VMDisconnectEvent) {
+                        throw new IOException("Debuggee exited during startup");
+                    }
+                }
+                if (!stopped) {
+                    eventSet.resume();
+                }
+            }
+            vm.eventRequestManager().deleteEventRequest(prepareRequest);
+            vm.eventRequestManager().deleteEventRequest(awaitRequest);
+            baselineThreads = vm.allThreads().size();
+        }
+
+        private BreakpointRequest breakpoint(ReferenceType type, String method) {
+            Method target = type.methodsByName(method).get(0);
+            BreakpointRequest request = vm.eventRequestManager().createBreakpointRequest(target.location());
+            request.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+            request.enable();
+            return request;
+        }
+
+        BreakpointRequest finishedRequest() {
+            return finishedRequest;
+        }
+
+        // Threads alive beyond those the idle debuggee had; traced code started them.
+        int extraThreads() {
+            return vm.allThreads().size() - baselineThreads;
+        }
+
+        /** Hands the program to the waiting bootstrap through JDI and resumes it; stdin only carries {@code input}. */
+        void start(Path classDir, String mainClass, String input) throws IOException {
+            try {
+                set("classDir", classDir.toAbsolutePath().toString());
+                set("mainClass", mainClass);
+            } catch (Exception ex) {
+                throw new IOException("Could not hand the program to the debuggee: " + ex.getMessage(), ex);
+            }
+            if (input != null) {
+                OutputStream out = process.getOutputStream();
+                out.write((input + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+            waiting.resume();
+        }
+
+        private void set(String name, String value) throws Exception {
+            Field field = bootstrapType.fieldByName(name);
+            StringReference mirror = vm.mirrorOf(value);
+            mirror.disableCollection();
+            try {
+                bootstrapType.setValue(field, mirror);
+            } finally {
+                mirror.enableCollection();
+            }
+        }
+
+        String stderrText() {
+            synchronized (stderr) {
+                return stderr.toString(StandardCharsets.UTF_8);
+            }
+        }
+
+        boolean isHealthy() {
+            if (!process.isAlive()) {
+                return false;
+            }
+            try {
+                return vm.allThreads().size() <= baselineThreads;
+            } catch (Exception ex) {
+                return false;
+            }
+        }
+
+        void destroy() {
+            if (!destroyed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                vm.exit(1);
+            } catch (Exception ignored) {
+            }
+            try {
+                vm.dispose();
+            } catch (Exception ignored) {
+            }
+            process.destroyForcibly();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package visualizer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+final class Digests {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Digests() {
+    }
+
+    static String sha256(String... parts) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        ByteBuffer length = ByteBuffer.allocate(4);
+        for (String part : parts) {
+            if (part == null) {
+                digest.update((byte) 0);
+                continue;
+            }
+            byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+            digest.update((byte) 1);
+            digest.update(length.clear().putInt(bytes.length).array());
+            digest.update(bytes);
+        }
+        byte[] hash = digest.digest();
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,214 @@
+package visualizer;
+
+import com.sun.jdi.ArrayReference;
+import com.sun.jdi.Field;
+import com.sun.jdi.ObjectReference;
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.ThreadReference;
+import com.sun.jdi.request.EventRequest;
+import com.sun.jdi.request.EventRequestManager;
+import com.sun.jdi.request.ModificationWatchpointRequest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What the JDI engine remembers about the debuggee heap across the steps of one trace. Node-shaped objects
+ * are read once and kept by {@code uniqueID()}; modification watchpoints on the node fields of the traced
+ * classes evict an object when one of its fields is written, so later steps re-read only objects that
+ * changed. Objects whose node fields are all final (such as strings) never change and are kept as read.
+ * Arrays have no write events and are still read at every step, in bulk. A write event arrives just before
+ * the write lands, so once a second thread writes node fields nothing more is remembered.
+ */
+final class HeapModel {
+    private static final String[] VALUE_FIELDS = {"value", "val"};
+    private static final String[] LINK_FIELDS = {"next", "left", "right"};
+
+    final TraceModels.RefTable refs = new TraceModels.RefTable();
+    // Ref id to object, kept only when a replay pages the heap at one of its steps.
+    private final Map<String, ObjectReference> resolved;
+    private final Map<Long, Node> nodes = new HashMap<>();
+    private final Map<ReferenceType, Shape> shapes = new HashMap<>();
+    private final Set<Field> watched = new HashSet<>();
+    private final Set<EventRequest> watchpoints = new HashSet<>();
+    private ThreadReference owner;
+    private boolean shared;
+
+    HeapModel() {
+        this(false);
+    }
+
+    HeapModel(boolean resolving) {
+        this.resolved = resolving ? new HashMap<>() : null;
+    }
+
+    TraceModels.Ref array(ArrayReference array) {
+        return track(refs.array(array.uniqueID()), array);
+    }
+
+    TraceModels.Ref object(ObjectReference object) {
+        return track(refs.object(object.uniqueID()), object);
+    }
+
+    TraceModels.Ref node(ObjectReference object) {
+        return track(refs.node(object.uniqueID()), object);
+    }
+
+    TraceModels.Ref list(ObjectReference head) {
+        return track(refs.list(head.uniqueID()), head);
+    }
+
+    private TraceModels.Ref track(TraceModels.Ref ref, ObjectReference object) {
+        if (resolved != null) {
+            resolved.put(ref.id, object);
+        }
+        return ref;
+    }
+
+    /** The object behind a ref id of this trace, if it has been seen; only for a resolving model. */
+    ObjectReference resolve(String ref) {
+        return resolved != null ? resolved.get(ref) : null;
+    }
+
+    /** Adds write watchpoints on the node fields declared by a traced class; without them its objects are re-read every step. */
+    void watch(EventRequestManager manager, ReferenceType type) {
+        if (!type.virtualMachine().canWatchFieldModification()) {
+            return;
+        }
+        for (Field field : type.fields()) {
+            if (field.isStatic() || field.isFinal() || !isNodeField(field.name())) {
+                continue;
+            }
+            ModificationWatchpointRequest watchpoint = manager.createModificationWatchpointRequest(field);
+            // Nothing to capture at the write itself; the event only has to arrive before the next step's.
+            watchpoint.setSuspendPolicy(EventRequest.SUSPEND_NONE);
+            watchpoint.enable();
+            watchpoints.add(watchpoint);
+            watched.add(field);
+        }
+    }
+
+    boolean isHeapWatchpoint(EventRequest request) {
+        return watchpoints.contains(request);
+    }
+
+    /** {@code thread} is about to assign a node field of {@code object}. */
+    void written(ObjectReference object, ThreadReference thread) {
+        if (!shared && !owns(thread)) {
+            shared = true;
+            nodes.clear();
+        }
+        if (object != null) {
+            nodes.remove(object.uniqueID());
+        }
+    }
+
+    /** A step of {@code thread} is about to be captured. */
+    void capturing(ThreadReference thread) {
+        if (!shared && !owns(thread)) {
+            shared = true;
+            nodes.clear();
+        }
+    }
+
+    private boolean owns(ThreadReference thread) {
+        if (owner == null) {
+            owner = thread;
+        }
+        return owner.equals(thread);
+    }
+
+    /** The remembered node for {@code id}, or null if it was never read or has been written since. */
+    Node known(long id) {
+        return nodes.get(id);
+    }
+
+    void remember(long id, Node node, Shape shape) {
+        if (shape.stable && !shared) {
+            nodes.put(id, node);
+        }
+    }
+
+    Shape shape(ReferenceType type) {
+        Shape shape = shapes.get(type);
+        if (shape == null) {
+            shape = new Shape(type.allFields(), watched);
+            shapes.put(type, shape);
+        }
+        return shape;
+    }
+
+    private static boolean isNodeField(String name) {
+        for (String candidate : VALUE_FIELDS) {
+            if (candidate.equals(name)) {
+                return true;
+            }
+        }
+        for (String candidate : LINK_FIELDS) {
+            if (candidate.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The node fields of one type, in the order they are read. */
+    static final class Shape {
+        final Field value;
+        final Field next;
+        final Field left;
+        final Field right;
+        final List<Field> fields;
+        // Every node field is final or watched, so a remembered node stays valid until a write is reported.
+        final boolean stable;
+
+        private Shape(List<Field> all, Set<Field> watched) {
+            this.value = find(all, VALUE_FIELDS);
+            this.next = find(all, "next");
+            this.left = find(all, "left");
+            this.right = find(all, "right");
+            List<Field> present = new ArrayList<>();
+            boolean stable = true;
+            for (Field field : new Field[] {value, next, left, right}) {
+                if (field != null) {
+                    present.add(field);
+                    stable &= field.isFinal() || watched.contains(field);
+                }
+            }
+            this.fields = Collections.unmodifiableList(present);
+            this.stable = stable;
+        }
+
+        boolean isNode() {
+            return !fields.isEmpty();
+        }
+
+        private static Field find(List<Field> fields, String... names) {
+            for (String name : names) {
+                for (Field field : fields) {
+                    if (field.name().equals(name)) {
+                        return field;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /** A node as last read: its heap entry, the object in its value field (whose own heap entries are re-mapped each step) and its list head entry. */
+    static final class Node {
+        final TraceModels.HeapNode heapNode;
+        final ObjectReference valueObject;
+        final TraceModels.HeapList list;
+
+        Node(TraceModels.HeapNode heapNode, ObjectReference valueObject, TraceModels.HeapList list) {
+            this.heapNode = heapNode;
+            this.valueObject = valueObject;
+            this.list = list;
+        }
+    }
+}
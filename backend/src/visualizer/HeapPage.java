@@ -0,0 +1,55 @@
+package visualizer;
+
+import java.util.Map;
+
+/**
+ * A {@code /heap} request: part of one object as it was at one step of a traced input. For an array it is
+ * the items from {@code offset}; for a node it is the nodes reached from it breadth-first through
+ * {@code next}, {@code left} and {@code right}, skipping the first {@code offset}.
+ */
+final class HeapPage {
+    static final int MAX_LIMIT = Math.max(1, Settings.intValue("heap.pageLimit", 1000));
+
+    final String snapshot;
+    final int input;
+    final int step;
+    final String ref;
+    final int offset;
+    final int limit;
+    // Filled in by the replay when it reaches the step.
+    Map<String, Object> result;
+
+    private HeapPage(String snapshot, int input, int step, String ref, int offset, int limit) {
+        this.snapshot = snapshot;
+        this.input = input;
+        this.step = step;
+        this.ref = ref;
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    // {"snapshot": "...", "input": 0, "step": 12, "ref": "arr-1", "offset": 200, "limit": 500}
+    static HeapPage parse(Object raw) {
+        if (!(raw instanceof Map)) {
+            throw new IllegalArgumentException("Invalid JSON payload");
+        }
+        Map<?, ?> payload = (Map<?, ?>) raw;
+        Object snapshot = payload.get("snapshot");
+        Object ref = payload.get("ref");
+        if (!(snapshot instanceof String) || !(ref instanceof String)) {
+            throw new IllegalArgumentException("snapshot and ref are required");
+        }
+        int step = number(payload.get("step"), -1);
+        if (step < 0) {
+            throw new IllegalArgumentException("step must be a step index");
+        }
+        int input = Math.max(0, number(payload.get("input"), 0));
+        int offset = Math.max(0, number(payload.get("offset"), 0));
+        int limit = Math.max(1, Math.min(MAX_LIMIT, number(payload.get("limit"), MAX_LIMIT)));
+        return new HeapPage((String) snapshot, input, step, (String) ref, offset, limit);
+    }
+
+    private static int number(Object value, int fallback) {
+        return value instanceof Number ? ((Number) value).intValue() : fallback;
+    }
+}
@@ -0,0 +1,173 @@
+package visualizer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The runs whose heaps can still be paged. Steps only carry shallow summaries (the first items of an array,
+ * the nodes the locals point at); a snapshot keeps what is needed to replay a run, its code, inputs and
+ * sampling, so {@code /heap} can run it again to a step and read the rest of an object there. Replays see the
+ * same ref ids as the original trace as long as the program is deterministic, so runs whose code looks
+ * otherwise (randomness, clocks, threads, identity hashes) get no snapshot.
+ *
+ * <p>A replay that reached a paged step is parked there with its debuggee suspended, for up to
+ * {@code heap.parkMillis} of idleness, so paging on through the same step reads the suspended JVM instead
+ * of running the program again.
+ */
+final class HeapSnapshots {
+    static final HeapSnapshots SHARED = new HeapSnapshots(Settings.intValue("heap.snapshots", 256));
+
+    private static final long PARK_MILLIS = Math.max(0, Settings.longValue("heap.parkMillis", 60000));
+    private static final int MAX_PARKED = Math.max(0, Settings.intValue("heap.maxParked", 2));
+    private static final Pattern NONDETERMINISTIC = Pattern.compile("\\b(Random|ThreadLocalRandom|SecureRandom|SplittableRandom|UUID"
+            + "|Math\\s*\\.\\s*random|nanoTime|currentTimeMillis|identityHashCode|getenv|Instant|LocalDate|LocalTime|LocalDateTime"
+            + "|ZonedDateTime|OffsetDateTime|Clock|Date|Thread|ExecutorService|Executors|CompletableFuture|ForkJoinPool|parallelStream"
+            + "|parallel|IdentityHashMap|WeakHashMap)\\b");
+    private static final Pattern DECLARES_HASH_CODE = Pattern.compile("\\bint\\s+hashCode\\s*\\(");
+    private static final Pattern HASHED_TYPE = Pattern.compile("\\bHash(?:Map|Set)\\s*<\\s*(\\w+)");
+    private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "heap-replays");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, Snapshot> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Replay> parked = new LinkedHashMap<>(16, 0.75f, true);
+
+    HeapSnapshots(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    boolean enabled() {
+        return maxEntries > 0;
+    }
+
+    /** Remembers a run and returns its snapshot id; the same run always gets the same id. */
+    synchronized String put(String code, List<String> inputs, Sampling sampling) {
+        List<String> parts = new ArrayList<>();
+        parts.add(code);
+        parts.add(sampling.key());
+        parts.addAll(inputs);
+        String id = Digests.sha256(parts.toArray(new String[0])).substring(0, 32);
+        if (entries.get(id) == null) {
+            entries.put(id, new Snapshot(code, new ArrayList<>(inputs), sampling));
+            Iterator<Map.Entry<String, Snapshot>> iterator = entries.entrySet().iterator();
+            while (entries.size() > maxEntries && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        return id;
+    }
+
+    synchronized Snapshot get(String id) {
+        return entries.get(id);
+    }
+
+    /**
+     * Whether a replay of {@code code} can be expected to reach the same state as the traced run. Hash order of
+     * a class declared in the code without its own hashCode follows identity hashes, which differ per JVM.
+     */
+    static boolean replayable(String code) {
+        if (NONDETERMINISTIC.matcher(code).find()) {
+            return false;
+        }
+        if (DECLARES_HASH_CODE.matcher(code).find()) {
+            return true;
+        }
+        Matcher hashed = HASHED_TYPE.matcher(code);
+        while (hashed.find()) {
+            if (Pattern.compile("\\b(class|record|enum)\\s+" + hashed.group(1) + "\\b").matcher(code).find()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Takes the replay parked at the page's step, if there is one; the caller parks it again when done. */
+    Replay unpark(HeapPage page) {
+        synchronized (parked) {
+            return parked.remove(replayKey(page));
+        }
+    }
+
+    /** Keeps a replay suspended at the page's step, or ends its debuggee when parking is off. */
+    void park(HeapPage page, DebuggeePool.Debuggee debuggee, HeapModel model) {
+        if (PARK_MILLIS == 0 || MAX_PARKED == 0) {
+            DebuggeePool.release(debuggee);
+            return;
+        }
+        List<Replay> evicted = new ArrayList<>();
+        synchronized (parked) {
+            Replay previous = parked.put(replayKey(page), new Replay(debuggee, model));
+            if (previous != null) {
+                evicted.add(previous);
+            }
+            Iterator<Replay> iterator = parked.values().iterator();
+            while (parked.size() > MAX_PARKED && iterator.hasNext()) {
+                evicted.add(iterator.next());
+                iterator.remove();
+            }
+        }
+        for (Replay replay : evicted) {
+            DebuggeePool.release(replay.debuggee);
+        }
+        SWEEPER.schedule(this::sweep, PARK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs once per park, so every parked replay is looked at once it may have been idle for the whole period.
+    private void sweep() {
+        long cutoff = System.currentTimeMillis() - PARK_MILLIS;
+        List<Replay> expired = new ArrayList<>();
+        synchronized (parked) {
+            Iterator<Replay> iterator = parked.values().iterator();
+            while (iterator.hasNext()) {
+                Replay replay = iterator.next();
+                if (replay.parkedAt <= cutoff) {
+                    expired.add(replay);
+                    iterator.remove();
+                }
+            }
+        }
+        for (Replay replay : expired) {
+            DebuggeePool.release(replay.debuggee);
+        }
+    }
+
+    private static String replayKey(HeapPage page) {
+        return page.snapshot + "/" + page.input + "/" + page.step;
+    }
+
+    /** A replay suspended at a paged step, with the heap model that resolves that step's ref ids. */
+    static final class Replay {
+        final DebuggeePool.Debuggee debuggee;
+        final HeapModel model;
+        final long parkedAt = System.currentTimeMillis();
+
+        Replay(DebuggeePool.Debuggee debuggee, HeapModel model) {
+            this.debuggee = debuggee;
+            this.model = model;
+        }
+    }
+
+    static final class Snapshot {
+        final String code;
+        final List<String> inputs;
+        final Sampling sampling;
+
+        Snapshot(String code, List<String> inputs, Sampling sampling) {
+            this.code = code;
+            this.inputs = inputs;
+            this.sampling = sampling;
+        }
+    }
+}
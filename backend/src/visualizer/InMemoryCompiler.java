@@ -0,0 +1,273 @@
+package visualizer;
+
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+final class InMemoryCompiler {
+    private static final List<String> OPTIONS = List.of("-g", "-proc:none", "-implicit:none", "-Xlint:none");
+    private static final JavaCompiler COMPILER = ToolProvider.getSystemJavaCompiler();
+    private static final ThreadLocal<StandardJavaFileManager> FILE_MANAGERS = ThreadLocal.withInitial(() ->
+            COMPILER.getStandardFileManager(null, Locale.ROOT, StandardCharsets.UTF_8));
+    // javac is CPU-bound and its file managers are reused per thread, so compiles run on a few platform
+    // threads instead of on whichever (possibly virtual) request thread asked for them.
+    private static final ExecutorService COMPILE_EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(1, Settings.intValue("compile.threads", Math.min(2, Runtime.getRuntime().availableProcessors()))),
+            runnable -> {
+                Thread thread = new Thread(runnable, "compiler");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final long COMPILE_DEADLINE_MILLIS = Settings.longValue("deadline.compileMillis", 10000);
+    private static final ClassCache CACHE = new ClassCache(
+            Settings.intValue("classCache.maxEntries", 256),
+            Settings.longValue("classCache.maxBytes", 32L * 1024 * 1024));
+
+    private InMemoryCompiler() {
+    }
+
+    static CompiledClasses compile(CodeBuilder.BuildResult build, CancellationToken token) {
+        String key = build.cacheKey();
+        CompiledClasses cached = CACHE.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        CompiledClasses compiled = compileOnExecutor(key, build, token);
+        CACHE.put(key, compiled);
+        return compiled;
+    }
+
+    /**
+     * javac ignores interrupts, so cancelling cannot stop it at once. A queued compile is dropped before it
+     * starts; a running one is abandoned: the request stops waiting for it, and javac is stopped at the next
+     * point where it starts or finishes a phase (parsing, attribution, generation) on a file. Until then it
+     * keeps its compiler thread, which {@code compile.threads} bounds.
+     */
+    private static CompiledClasses compileOnExecutor(String key, CodeBuilder.BuildResult build, CancellationToken token) {
+        AtomicBoolean abandoned = new AtomicBoolean();
+        Future<CompiledClasses> future = COMPILE_EXECUTOR.submit(() -> compile(key, build, abandoned));
+        CancellationToken stage = token.child(COMPILE_DEADLINE_MILLIS, "Compilation timed out");
+        CancellationToken.Registration stop = stage.onCancel(() -> {
+            abandoned.set(true);
+            future.cancel(false);
+        });
+        try {
+            return future.get();
+        } catch (CancellationException ex) {
+            token.throwIfCancelled();
+            throw new CancellationException("Compilation timed out");
+        } catch (InterruptedException ex) {
+            abandoned.set(true);
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while compiling", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            stop.close();
+            stage.close();
+        }
+    }
+
+    /**
+     * Compiles the program with all of its harnesses in one go. When that fails and the program compiles on
+     * its own, each harness is compiled with it separately, and the ones that fail (usually over an input
+     * that does not fit the method's parameters) are recorded in {@link CompiledClasses#failures} for their
+     * input alone.
+     */
+    private static CompiledClasses compile(String key, CodeBuilder.BuildResult build, AtomicBoolean abandoned) {
+        Map<String, String> sources = new LinkedHashMap<>();
+        sources.put(build.primaryClassName, build.primaryCode);
+        sources.putAll(build.harnessCode);
+        try {
+            return new CompiledClasses(key, compile(sources, abandoned), Collections.emptyMap());
+        } catch (IllegalArgumentException ex) {
+            if (build.harnessCode.isEmpty()) {
+                throw ex;
+            }
+        }
+        Map<String, byte[]> classes = compile(Map.of(build.primaryClassName, build.primaryCode), abandoned);
+        Map<String, String> failures = new LinkedHashMap<>();
+        for (Map.Entry<String, String> harness : build.harnessCode.entrySet()) {
+            Map<String, String> unit = new LinkedHashMap<>();
+            unit.put(build.primaryClassName, build.primaryCode);
+            unit.put(harness.getKey(), harness.getValue());
+            try {
+                classes.putAll(compile(unit, abandoned));
+            } catch (IllegalArgumentException ex) {
+                failures.put(harness.getKey(), ex.getMessage());
+            }
+        }
+        return new CompiledClasses(key, classes, failures);
+    }
+
+    private static Map<String, byte[]> compile(Map<String, String> sources, AtomicBoolean abandoned) {
+        if (COMPILER == null) {
+            throw new IllegalStateException("No system Java compiler available; run the server on a JDK.");
+        }
+        if (sources.isEmpty()) {
+            throw new IllegalArgumentException("No Java sources to compile.");
+        }
+        List<JavaFileObject> units = new ArrayList<>();
+        for (Map.Entry<String, String> entry : sources.entrySet()) {
+            units.add(new SourceFile(entry.getKey(), entry.getValue()));
+        }
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        MemoryFileManager fileManager = new MemoryFileManager(FILE_MANAGERS.get());
+        JavacTask task = (JavacTask) COMPILER.getTask(null, fileManager, diagnostics, OPTIONS, null, units);
+        task.addTaskListener(new TaskListener() {
+            @Override
+            public void started(TaskEvent event) {
+                stopIfAbandoned(abandoned);
+            }
+
+            @Override
+            public void finished(TaskEvent event) {
+                stopIfAbandoned(abandoned);
+            }
+        });
+        Boolean ok = task.call();
+        if (!Boolean.TRUE.equals(ok)) {
+            throw new IllegalArgumentException("Compilation failed: " + formatDiagnostics(diagnostics));
+        }
+        return fileManager.classes();
+    }
+
+    private static void stopIfAbandoned(AtomicBoolean abandoned) {
+        if (abandoned.get()) {
+            throw new CancellationException("Compilation abandoned");
+        }
+    }
+
+    private static String formatDiagnostics(DiagnosticCollector<JavaFileObject> diagnostics) {
+        StringBuilder builder = new StringBuilder();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() != Diagnostic.Kind.ERROR) {
+                continue;
+            }
+            String source = diagnostic.getSource() != null ? diagnostic.getSource().getName() : "";
+            builder.append(source.startsWith("/") ? source.substring(1) : source)
+                    .append(':').append(diagnostic.getLineNumber())
+                    .append(": error: ").append(diagnostic.getMessage(Locale.ROOT))
+                    .append('\n');
+        }
+        return builder.toString();
+    }
+
+    static final class CompiledClasses {
+        final String key;
+        final Map<String, byte[]> classes;
+        // Compilation errors by harness class, for harnesses that did not compile.
+        final Map<String, String> failures;
+        final long size;
+
+        CompiledClasses(String key, Map<String, byte[]> classes, Map<String, String> failures) {
+            this.key = key;
+            this.classes = Collections.unmodifiableMap(classes);
+            this.failures = Collections.unmodifiableMap(failures);
+            long total = 0;
+            for (byte[] bytes : classes.values()) {
+                total += bytes.length;
+            }
+            this.size = total;
+        }
+
+        void writeTo(Path dir) throws IOException {
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                Path file = dir.resolve(entry.getKey().replace('.', '/') + ".class");
+                Files.createDirectories(file.getParent());
+                Files.write(file, entry.getValue());
+            }
+        }
+    }
+
+    private static final class SourceFile extends SimpleJavaFileObject {
+        private final String code;
+
+        SourceFile(String className, String code) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.code = code;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+
+    private static final class ClassFile extends SimpleJavaFileObject {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        ClassFile(String className) {
+            super(URI.create("bytes:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return bytes;
+        }
+    }
+
+    private static final class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        private final Map<String, ClassFile> outputs = new LinkedHashMap<>();
+
+        MemoryFileManager(StandardJavaFileManager delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+            if (location == StandardLocation.CLASS_OUTPUT && kind == JavaFileObject.Kind.CLASS) {
+                ClassFile file = new ClassFile(className);
+                outputs.put(className, file);
+                return file;
+            }
+            return super.getJavaFileForOutput(location, className, kind, sibling);
+        }
+
+        @Override
+        public void close() {
+            // The delegate is shared across compilations on this thread; keep it open.
+        }
+
+        Map<String, byte[]> classes() {
+            Map<String, byte[]> result = new LinkedHashMap<>();
+            for (Map.Entry<String, ClassFile> entry : outputs.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().bytes.toByteArray());
+            }
+            return result;
+        }
+    }
+}
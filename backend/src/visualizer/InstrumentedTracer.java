@@ -0,0 +1,282 @@
+package visualizer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * The instrumented trace engine: runs a rewritten copy of the program (see {@link BytecodeInstrumenter}) in
+ * a plain JVM under {@link TraceRecorder} and decodes its records into the same steps as {@link JavaTracer}.
+ * No debugger is attached, so the program runs at near full speed and steps cost one buffered record each
+ * instead of a suspend and several JDWP round-trips. Only full sampling is supported, and strings, boxed
+ * values and chars in locals are shown as values rather than object refs.
+ */
+final class InstrumentedTracer {
+    static final TraceEngine ENGINE = new InstrumentedEngine();
+
+    private static final int MAX_STDERR_BYTES = 64 * 1024;
+    // Records come from a JVM running user code, which can write to stdout itself; lengths and counts past
+    // these are taken as a corrupt trace rather than allocated.
+    private static final int MAX_STRING_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_LOCALS = 65535;
+
+    private InstrumentedTracer() {
+    }
+
+    private static int run(JavaTracer.Program program, int inputIndex, String input, CancellationToken token, TraceEngine.StepSink sink)
+            throws Exception {
+        Path classDir = instrumented(program);
+        List<String> command = LaunchProfile.CURRENT.command(Path.of(System.getProperty("java.home"), "bin", "java").toString(), true);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(TraceRecorder.class.getName());
+        command.add(classDir.toString());
+        command.add(program.build.mainClassName(inputIndex));
+        command.add(String.valueOf(LaunchProfile.CURRENT.maxThreads));
+        // The recorder runs in the debuggee JVM, which does not see the server's settings.
+        command.add(String.valueOf(JavaTracer.MAX_STEPS));
+        Process process = new ProcessBuilder(command).start();
+        CancellationToken stage = token.child(JavaTracer.TRACE_DEADLINE_MILLIS, "Trace timed out");
+        CancellationToken.Registration kill = stage.onCancel(process::destroyForcibly);
+        try {
+            Path cgroup = LaunchProfile.CURRENT.confine(process.pid());
+            if (cgroup != null) {
+                process.onExit().thenRun(() -> LaunchProfile.release(cgroup));
+            }
+            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            Thread errors = Thread.ofVirtual().name("instrumented-stderr").start(() -> collect(process.getErrorStream(), stderr));
+            try (OutputStream stdin = process.getOutputStream()) {
+                if (program.build.isDirect && input != null) {
+                    stdin.write((input + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            } catch (IOException ex) {
+                // The program may exit without reading its input.
+            }
+
+            int captured = 0;
+            String runError = null;
+            TraceModels.RefTable refs = new TraceModels.RefTable();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(process.getInputStream(), 64 * 1024))) {
+                while (true) {
+                    byte kind = in.readByte();
+                    if (kind == TraceRecorder.END) {
+                        runError = readString(in);
+                        break;
+                    }
+                    if (kind == TraceRecorder.LIMIT) {
+                        stage.cancel(readString(in));
+                        break;
+                    }
+                    if (kind != TraceRecorder.STEP) {
+                        throw new IOException("Unexpected trace record " + kind);
+                    }
+                    sink.accept(readStep(in, refs));
+                    captured++;
+                }
+            } catch (EOFException ex) {
+                // The recorder was killed or crashed before its end record; keep the steps it delivered.
+            }
+            process.waitFor();
+            errors.join();
+            stage.throwIfCancelled();
+            // Stderr is only the error when the recorder died before its end record.
+            String error = runError != null ? runError : stderr.toString(StandardCharsets.UTF_8);
+            if (!error.isEmpty() && captured == 0) {
+                throw new RuntimeException("Runtime Error: " + error);
+            }
+            return captured;
+        } finally {
+            kill.close();
+            stage.close();
+            process.destroyForcibly();
+        }
+    }
+
+    // Instrumented once per program and shared by all of its inputs; deleted with the class directory.
+    private static Path instrumented(JavaTracer.Program program) throws IOException {
+        Path dir = program.classDir.resolve("instrumented");
+        synchronized (program) {
+            if (!Files.isDirectory(dir)) {
+                Path staging = Files.createTempDirectory(program.classDir, "instrumenting");
+                BytecodeInstrumenter.instrument(program.classDir, program.build.primaryClassName, staging);
+                Files.move(staging, dir, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        return dir;
+    }
+
+    private static void collect(InputStream stream, ByteArrayOutputStream target) {
+        byte[] chunk = new byte[4096];
+        try {
+            int read;
+            while ((read = stream.read(chunk)) != -1) {
+                int room = MAX_STDERR_BYTES - target.size();
+                if (room > 0) {
+                    target.write(chunk, 0, Math.min(read, room));
+                }
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static TraceModels.Step readStep(DataInputStream in, TraceModels.RefTable refs) throws IOException {
+        int line = in.readInt();
+        int count = checkedCount(in.readInt(), MAX_LOCALS, "locals");
+        String[] names = new String[count];
+        Object[] values = new Object[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = readString(in);
+            values[i] = readValue(in, refs);
+        }
+        int heapCount = checkedCount(in.readInt(), JavaTracer.MAX_HEAP_OBJECTS + count, "heap objects");
+        List<TraceModels.HeapObject> heap = TraceModels.heapList();
+        for (int i = 0; i < heapCount; i++) {
+            byte kind = in.readByte();
+            if (kind == TraceRecorder.ARRAY) {
+                heap.add(readArray(in, refs));
+            } else if (kind == TraceRecorder.NODE) {
+                heap.add(readNode(in, refs));
+            } else if (kind == TraceRecorder.LIST) {
+                long id = in.readLong();
+                heap.add(TraceModels.heapList(refs.list(id), "list", refs.node(id)));
+            } else {
+                throw new IOException("Unexpected heap record " + kind);
+            }
+        }
+        return TraceModels.step(line, names, values, heap, null);
+    }
+
+    private static TraceModels.HeapArray readArray(DataInputStream in, TraceModels.RefTable refs) throws IOException {
+        TraceModels.Ref ref = refs.array(in.readLong());
+        String name = readString(in);
+        char component = (char) in.readByte();
+        int count = checkedCount(in.readInt(), JavaTracer.MAX_ARRAY_ITEMS, "array items");
+        int size = in.readInt();
+        if (size < count) {
+            throw new IOException("Corrupt trace: array of " + size + " items with " + count + " sent");
+        }
+        TraceModels.HeapArray array = TraceModels.heapArray(ref, name, component, count, size);
+        switch (component) {
+            case 'I':
+            case 'J':
+            case 'S':
+            case 'B':
+                for (int i = 0; i < count; i++) {
+                    array.longs[i] = in.readLong();
+                }
+                break;
+            case 'Z':
+                for (int i = 0; i < count; i++) {
+                    array.longs[i] = in.readByte();
+                }
+                break;
+            case 'D':
+            case 'F':
+                for (int i = 0; i < count; i++) {
+                    array.doubles[i] = in.readDouble();
+                }
+                break;
+            default:
+                for (int i = 0; i < count; i++) {
+                    array.set(i, readValue(in, refs));
+                }
+                break;
+        }
+        return array;
+    }
+
+    private static TraceModels.HeapNode readNode(DataInputStream in, TraceModels.RefTable refs) throws IOException {
+        TraceModels.Ref ref = refs.node(in.readLong());
+        Object value = readValue(in, refs);
+        if (value instanceof TraceModels.Ref) {
+            value = ((TraceModels.Ref) value).id;
+        }
+        TraceModels.Ref next = nodeRef(in.readLong(), refs);
+        TraceModels.Ref left = nodeRef(in.readLong(), refs);
+        TraceModels.Ref right = nodeRef(in.readLong(), refs);
+        return TraceModels.heapNode(ref, value, next, left, right);
+    }
+
+    private static TraceModels.Ref nodeRef(long id, TraceModels.RefTable refs) {
+        return id < 0 ? null : refs.node(id);
+    }
+
+    private static Object readValue(DataInputStream in, TraceModels.RefTable refs) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case TraceRecorder.NULL:
+                return null;
+            case TraceRecorder.LONG:
+                return in.readLong();
+            case TraceRecorder.DOUBLE:
+                return in.readDouble();
+            case TraceRecorder.BOOLEAN:
+                return in.readByte() != 0;
+            case TraceRecorder.STRING:
+                return readString(in);
+            case TraceRecorder.ARRAY_REF:
+                return refs.array(in.readLong());
+            case TraceRecorder.OBJECT_REF:
+                return refs.object(in.readLong());
+            default:
+                throw new IOException("Unexpected value tag " + tag);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        checkedCount(length, MAX_STRING_BYTES, "string bytes");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int checkedCount(int count, int max, String what) throws IOException {
+        if (count < 0 || count > max) {
+            throw new IOException("Corrupt trace: " + count + " " + what);
+        }
+        return count;
+    }
+
+    // Batches records in the program's JVM, so steps arrive a buffer at a time; only full traces are recorded.
+    private static final class InstrumentedEngine implements TraceEngine {
+        @Override
+        public String name() {
+            return "instrumented";
+        }
+
+        @Override
+        public boolean supportsStreaming() {
+            return false;
+        }
+
+        @Override
+        public boolean supportsDeltas() {
+            return true;
+        }
+
+        @Override
+        public boolean supportsSampling(String mode) {
+            return Sampling.FULL_MODE.equals(mode);
+        }
+
+        @Override
+        public int trace(JavaTracer.Program program, int inputIndex, String input, Sampling sampling, CancellationToken token,
+                TraceEngine.StepSink sink) throws Exception {
+            TraceEngines.check(this, sampling, false);
+            return run(program, inputIndex, input, token, sink);
+        }
+    }
+}
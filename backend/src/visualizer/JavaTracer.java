@@ -1,149 +1,237 @@
 package visualizer;
 
 import com.sun.jdi.ArrayReference;
-import com.sun.jdi.Bootstrap;
+import com.sun.jdi.ArrayType;
+import com.sun.jdi.BooleanValue;
+import com.sun.jdi.CharValue;
+import com.sun.jdi.DoubleValue;
 import com.sun.jdi.Field;
+import com.sun.jdi.FloatValue;
+import com.sun.jdi.IntegerValue;
 import com.sun.jdi.LocalVariable;
+import com.sun.jdi.LongValue;
+import com.sun.jdi.Method;
 import com.sun.jdi.ObjectReference;
 import com.sun.jdi.PrimitiveValue;
 import com.sun.jdi.ReferenceType;
+import com.sun.jdi.AbsentInformationException;
+import com.sun.jdi.Location;
 import com.sun.jdi.StackFrame;
+import com.sun.jdi.StringReference;
 import com.sun.jdi.ThreadReference;
+import com.sun.jdi.VMDisconnectedException;
 import com.sun.jdi.Value;
 import com.sun.jdi.VirtualMachine;
-import com.sun.jdi.connect.Connector;
-import com.sun.jdi.connect.LaunchingConnector;
+import com.sun.jdi.event.BreakpointEvent;
+import com.sun.jdi.event.ClassPrepareEvent;
 import com.sun.jdi.event.Event;
 import com.sun.jdi.event.EventQueue;
 import com.sun.jdi.event.EventSet;
 import com.sun.jdi.event.ExceptionEvent;
-import com.sun.jdi.event.MethodEntryEvent;
+import com.sun.jdi.event.ModificationWatchpointEvent;
 import com.sun.jdi.event.StepEvent;
+import com.sun.jdi.event.ThreadStartEvent;
 import com.sun.jdi.event.VMDeathEvent;
 import com.sun.jdi.event.VMDisconnectEvent;
-import com.sun.jdi.event.VMStartEvent;
+import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.ClassPrepareRequest;
 import com.sun.jdi.request.EventRequestManager;
 import com.sun.jdi.request.ExceptionRequest;
-import com.sun.jdi.request.MethodEntryRequest;
+import com.sun.jdi.request.ModificationWatchpointRequest;
 import com.sun.jdi.request.StepRequest;
-import java.io.ByteArrayOutputStream;
+import com.sun.jdi.request.ThreadStartRequest;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public final class JavaTracer {
-    private static final int MAX_STEPS = 3000;
-    private static final int MAX_HEAP_OBJECTS = 500;
-    private static final int MAX_ARRAY_ITEMS = 200;
-    private static final int MAX_NODE_DEPTH = 60;
-    private static final int MAX_TIME_LIMIT_SECONDS = 15;
+    static final TraceEngine ENGINE = new JdiEngine();
+    static final int MAX_STEPS = Math.max(1, Settings.intValue("trace.maxSteps", 3000));
+    static final int MAX_HEAP_OBJECTS = 500;
+    static final int MAX_ARRAY_ITEMS = 200;
+    private static final int ARRAY_READ_CHUNK = 1024;
+    static final int MAX_NODE_DEPTH = 60;
+    static final long TRACE_DEADLINE_MILLIS = Settings.longValue("deadline.traceMillis", 15000);
 
     private JavaTracer() {
     }
 
-    public static List<Map<String, Object>> trace(String code, String input) throws Exception {
-        return java.util.concurrent.CompletableFuture.supplyAsync(() -> {
-            try {
-                return executeTrace(code, input);
-            } catch (Exception e) {
-                if (e.getCause() instanceof Exception) {
-                    throw new RuntimeException(e.getCause());
-                }
-                throw new RuntimeException(e);
-            }
-        }).get(MAX_TIME_LIMIT_SECONDS, java.util.concurrent.TimeUnit.SECONDS);
+    public static List<TraceModels.Step> trace(String code, String input) throws Exception {
+        CancellationToken token = new CancellationToken();
+        try (Program program = prepare(code, Collections.singletonList(input), token)) {
+            return ENGINE.trace(program, 0, input, Sampling.FULL, token);
+        }
     }
 
-    private static List<Map<String, Object>> executeTrace(String code, String input) throws Exception {
-        CodeBuilder.BuildResult build = CodeBuilder.build(code, input);
+    static Program prepare(String code, List<String> inputs) throws IOException {
+        return prepare(code, inputs, new CancellationToken());
+    }
+
+    static Program prepare(String code, List<String> inputs, CancellationToken token) throws IOException {
+        CodeBuilder.BuildResult build = CodeBuilder.build(code, inputs);
+        InMemoryCompiler.CompiledClasses classes = InMemoryCompiler.compile(build, token);
 
         Path tempDir = Files.createTempDirectory("java-trace-" + Instant.now().toEpochMilli());
         try {
-            Path primaryFile = tempDir.resolve(build.primaryClassName + ".java");
-            Files.writeString(primaryFile, build.primaryCode, StandardCharsets.UTF_8);
-            if (!build.isDirect && build.mainCode != null) {
-                Path mainFile = tempDir.resolve("Main.java");
-                Files.writeString(mainFile, build.mainCode, StandardCharsets.UTF_8);
-            }
-            compile(tempDir);
-            return runWithJdi(tempDir, build.mainClassName, build.primaryClassName, input);
-        } finally {
+            classes.writeTo(tempDir);
+        } catch (IOException ex) {
             deleteDirectory(tempDir.toFile());
+            throw ex;
         }
+        return new Program(build, tempDir, classes.failures);
     }
 
-    private static void compile(Path tempDir) throws IOException, InterruptedException {
-        List<String> sources = new ArrayList<>();
-        Files.list(tempDir)
-                .filter(path -> path.getFileName().toString().endsWith(".java"))
-                .forEach(path -> sources.add(path.getFileName().toString()));
-        if (sources.isEmpty()) {
-            throw new IllegalArgumentException("No Java sources to compile.");
-        }
-        List<String> command = new ArrayList<>();
-        command.add("javac");
-        command.add("-g");
-        command.addAll(sources);
-        ProcessBuilder builder = new ProcessBuilder(command);
-        builder.directory(tempDir.toFile());
-        Process process = builder.start();
-        String stderr = readAll(process.getErrorStream());
-        int exit = process.waitFor();
-        if (exit != 0) {
-            throw new IllegalArgumentException("Compilation failed: " + stderr);
+    /**
+     * Replays input {@code inputIndex} to the page's step and reads the page there. Objects that were never
+     * part of a step (such as the tail of a long list) are numbered after the step's own refs. The replay is
+     * then parked at that step ({@link HeapSnapshots#park}) for {@link #pageParked}.
+     */
+    static Map<String, Object> page(Program program, int inputIndex, String input, Sampling sampling, HeapPage page, CancellationToken token)
+            throws Exception {
+        program.checkCompiled(inputIndex);
+        try (CancellationToken stage = token.child(TRACE_DEADLINE_MILLIS, "Trace timed out")) {
+            String stdin = program.build.isDirect ? input : null;
+            runWithJdi(program.classDir, program.build.mainClassName(inputIndex), program.build.primaryClassName, stdin, sampling, stage, page,
+                    step -> {
+                    });
         }
+        if (page.result == null) {
+            throw new IllegalArgumentException("The trace has no step " + page.step);
+        }
+        return page.result;
     }
 
-    private static List<Map<String, Object>> runWithJdi(Path tempDir, String mainClass, String targetClass, String input) throws Exception {
-        LaunchingConnector connector = findLaunchingConnector();
-        Map<String, Connector.Argument> args = connector.defaultArguments();
-        args.get("main").setValue(mainClass);
-        args.get("options").setValue("-cp " + tempDir.toAbsolutePath());
+    /** Reads the page from the replay parked at its step; null when none is parked or its JVM has gone. */
+    static Map<String, Object> pageParked(HeapPage page) {
+        HeapSnapshots.Replay replay = HeapSnapshots.SHARED.unpark(page);
+        if (replay == null) {
+            return null;
+        }
+        try {
+            Map<String, Object> result = readPage(page, replay.model);
+            HeapSnapshots.SHARED.park(page, replay.debuggee, replay.model);
+            return result;
+        } catch (VMDisconnectedException ex) {
+            DebuggeePool.release(replay.debuggee);
+            return null;
+        } catch (RuntimeException ex) {
+            // A bad ref or offset in this request says nothing about the replay.
+            HeapSnapshots.SHARED.park(page, replay.debuggee, replay.model);
+            throw ex;
+        }
+    }
 
-        VirtualMachine vm = connector.launch(args);
-        Process process = vm.process();
-        ByteArrayOutputStream stderrBuffer = new ByteArrayOutputStream();
-        consumeStream(process.getInputStream(), System.out);
-        consumeStream(process.getErrorStream(), stderrBuffer);
-        writeInput(process, input);
+    private static int runWithJdi(Path classDir, String mainClass, String targetClass, String input, Sampling sampling, CancellationToken token,
+            HeapPage page, TraceEngine.StepSink sink) throws Exception {
+        DebuggeePool.Debuggee debuggee = DebuggeePool.borrow(token);
+        CancellationToken.Registration kill = token.onCancel(debuggee::destroy);
+        VirtualMachine vm = debuggee.vm;
+        EventRequestManager manager = vm.eventRequestManager();
 
-        List<Map<String, Object>> trace = new ArrayList<>();
+        int captured = 0;
+        HeapModel model = new HeapModel(page != null);
         try {
-            EventRequestManager manager = vm.eventRequestManager();
-
-            MethodEntryRequest entryRequest = manager.createMethodEntryRequest();
-            entryRequest.addClassFilter(targetClass + "*");
-            entryRequest.setSuspendPolicy(StepRequest.SUSPEND_EVENT_THREAD);
-            entryRequest.enable();
+            ClassPrepareRequest prepareRequest = manager.createClassPrepareRequest();
+            prepareRequest.addClassFilter(targetClass + "*");
+            prepareRequest.setSuspendPolicy(StepRequest.SUSPEND_EVENT_THREAD);
+            prepareRequest.enable();
 
             ExceptionRequest exceptionRequest = manager.createExceptionRequest(null, true, true);
             exceptionRequest.addClassFilter(targetClass + "*");
             exceptionRequest.setSuspendPolicy(StepRequest.SUSPEND_EVENT_THREAD);
             exceptionRequest.enable();
 
+            int maxThreads = LaunchProfile.CURRENT.maxThreads;
+            if (maxThreads > 0) {
+                ThreadStartRequest threadRequest = manager.createThreadStartRequest();
+                threadRequest.setSuspendPolicy(StepRequest.SUSPEND_EVENT_THREAD);
+                threadRequest.enable();
+            }
+
+            debuggee.start(classDir, mainClass, input);
+
             EventQueue queue = vm.eventQueue();
             boolean running = true;
             StepRequest activeStep = null;
+            Map<ThreadReference, StepRequest> afterWrite = new HashMap<>();
             int steps = 0;
+            String runError = null;
 
             while (running) {
                 EventSet eventSet = queue.remove();
                 for (Event event : eventSet) {
-                    if (event instanceof VMStartEvent) {
-                        // VM started
-                    } else if (event instanceof MethodEntryEvent) {
-                        MethodEntryEvent entryEvent = (MethodEntryEvent) event;
-                        ThreadReference thread = entryEvent.thread();
+                    if (event instanceof ClassPrepareEvent) {
+                        ReferenceType type = ((ClassPrepareEvent) event).referenceType();
+                        model.watch(manager, type);
+                        if (Sampling.LINES_MODE.equals(sampling.mode)) {
+                            addLineBreakpoints(manager, type, sampling.lines);
+                        } else if (Sampling.WATCH_MODE.equals(sampling.mode)) {
+                            addWatchpoints(manager, type, sampling);
+                        } else {
+                            // Breakpoints on method entry keep the rest of the VM (class loading, the
+                            // bootstrap) out of JVMTI method-entry callbacks.
+                            addEntryBreakpoints(manager, type);
+                        }
+                    } else if (event instanceof BreakpointEvent && event.request() == debuggee.finishedRequest()) {
+                        runError = readRunError(((BreakpointEvent) event).thread());
+                        running = false;
+                    } else if (event instanceof BreakpointEvent && Sampling.LINES_MODE.equals(sampling.mode)) {
+                        TraceModels.Step step = captureStep(((BreakpointEvent) event).thread(), model);
+                        if (step != null) {
+                            if (readPageAt(page, captured, model)) {
+                                running = false;
+                                break;
+                            }
+                            sink.accept(step);
+                            if (++captured >= MAX_STEPS) {
+                                running = false;
+                                break;
+                            }
+                        }
+                    } else if (event instanceof ModificationWatchpointEvent && model.isHeapWatchpoint(event.request())) {
+                        ModificationWatchpointEvent write = (ModificationWatchpointEvent) event;
+                        model.written(write.object(), write.thread());
+                    } else if (event instanceof ModificationWatchpointEvent) {
+                        // The event fires before the write lands; capture once the assigning line has run.
+                        ModificationWatchpointEvent write = (ModificationWatchpointEvent) event;
+                        model.written(write.object(), write.thread());
+                        ThreadReference thread = write.thread();
+                        if (!afterWrite.containsKey(thread)) {
+                            StepRequest step = manager.createStepRequest(thread, StepRequest.STEP_LINE, StepRequest.STEP_OVER);
+                            step.addClassFilter(targetClass + "*");
+                            step.setSuspendPolicy(StepRequest.SUSPEND_EVENT_THREAD);
+                            step.enable();
+                            afterWrite.put(thread, step);
+                        }
+                    } else if (event instanceof StepEvent && Sampling.WATCH_MODE.equals(sampling.mode)) {
+                        StepEvent stepEvent = (StepEvent) event;
+                        StepRequest done = afterWrite.remove(stepEvent.thread());
+                        manager.deleteEventRequest(done);
+                        TraceModels.Step step = captureStep(stepEvent.thread(), model);
+                        if (step != null) {
+                            if (readPageAt(page, captured, model)) {
+                                running = false;
+                                break;
+                            }
+                            sink.accept(step);
+                            if (++captured >= MAX_STEPS) {
+                                running = false;
+                                break;
+                            }
+                        }
+                    } else if (event instanceof BreakpointEvent) {
+                        ThreadReference thread = ((BreakpointEvent) event).thread();
                         if (activeStep != null) {
                             activeStep.disable();
                         }
@@ -154,6 +242,10 @@ public final class JavaTracer {
                         activeStep.addClassExclusionFilter("jdk.*");
                         activeStep.setSuspendPolicy(StepRequest.SUSPEND_EVENT_THREAD);
                         activeStep.enable();
+                    } else if (event instanceof ThreadStartEvent) {
+                        if (debuggee.extraThreads() > maxThreads) {
+                            token.cancel("Program exceeded the limit of " + maxThreads + " threads");
+                        }
                     } else if (event instanceof ExceptionEvent) {
                         // Exception caught
                         ExceptionEvent exEvent = (ExceptionEvent) event;
@@ -161,72 +253,139 @@ public final class JavaTracer {
                     } else if (event instanceof StepEvent) {
                         StepEvent stepEvent = (StepEvent) event;
                         ThreadReference thread = stepEvent.thread();
-                        if (steps++ > MAX_STEPS) {
+                        if (sampling.isFull() ? steps++ > MAX_STEPS : captured >= MAX_STEPS) {
                             running = false;
                             break;
                         }
-                        Map<String, Object> step = captureStep(thread);
+                        if (!sampling.isFull() && steps++ % sampling.every != 0) {
+                            continue;
+                        }
+                        TraceModels.Step step = captureStep(thread, model);
                         if (step != null) {
-                            trace.add(step);
+                            if (readPageAt(page, captured, model)) {
+                                running = false;
+                                break;
+                            }
+                            sink.accept(step);
+                            captured++;
                         }
                     } else if (event instanceof VMDeathEvent || event instanceof VMDisconnectEvent) {
                         running = false;
                     }
                 }
+                if (page != null && page.result != null) {
+                    // Left suspended at the page's step, so it can be parked.
+                    vm.suspend();
+                    break;
+                }
                 eventSet.resume();
             }
-            
-            String stderr = stderrBuffer.toString(StandardCharsets.UTF_8);
-            if (!stderr.isEmpty() && trace.isEmpty()) {
+
+            token.throwIfCancelled();
+            String stderr = runError != null ? runError : debuggee.stderrText();
+            if (!stderr.isEmpty() && captured == 0) {
                 throw new RuntimeException("Runtime Error: " + stderr);
             }
-            
+        } catch (VMDisconnectedException ex) {
+            token.throwIfCancelled();
+            throw ex;
         } finally {
-            try {
-                vm.dispose();
-            } catch (Exception ignored) {
+            kill.close();
+            if (page != null && page.result != null && !token.isCancelled()) {
+                HeapSnapshots.SHARED.park(page, debuggee, model);
+            } else {
+                DebuggeePool.release(debuggee);
+            }
+        }
+        return captured;
+    }
+
+    private static void addEntryBreakpoints(EventRequestManager manager, ReferenceType type) {
+        for (Method method : type.methods()) {
+            if (method.isAbstract() || method.isNative() || method.location() == null) {
+                continue;
             }
+            BreakpointRequest breakpoint = manager.createBreakpointRequest(method.location());
+            breakpoint.setSuspendPolicy(StepRequest.SUSPEND_EVENT_THREAD);
+            breakpoint.enable();
         }
-        return trace;
     }
 
-    private static void consumeStream(InputStream stream, OutputStream target) {
-        Thread thread = new Thread(() -> {
+    private static void addLineBreakpoints(EventRequestManager manager, ReferenceType type, int[] lines) {
+        for (int line : lines) {
+            List<Location> locations;
             try {
-                stream.transferTo(target);
-            } catch (IOException ignored) {
+                locations = type.locationsOfLine(line);
+            } catch (AbsentInformationException ex) {
+                return;
+            }
+            // A loop header has several locations (init, condition, update); each one stops.
+            for (Location location : locations) {
+                BreakpointRequest breakpoint = manager.createBreakpointRequest(location);
+                breakpoint.setSuspendPolicy(StepRequest.SUSPEND_EVENT_THREAD);
+                breakpoint.enable();
             }
-        });
-        thread.setDaemon(true);
-        thread.start();
+        }
     }
 
-    private static Map<String, Object> captureStep(ThreadReference thread) {
+    private static void addWatchpoints(EventRequestManager manager, ReferenceType type, Sampling sampling) {
+        if (!type.virtualMachine().canWatchFieldModification()) {
+            throw new IllegalStateException("This JVM cannot watch field modifications");
+        }
+        for (Field field : type.fields()) {
+            if (field.isSynthetic() || !sampling.watches(field.name())) {
+                continue;
+            }
+            ModificationWatchpointRequest watchpoint = manager.createModificationWatchpointRequest(field);
+            watchpoint.setSuspendPolicy(StepRequest.SUSPEND_EVENT_THREAD);
+            watchpoint.enable();
+        }
+    }
+
+    private static String readRunError(ThreadReference thread) {
         try {
+            List<Value> args = thread.frame(0).getArgumentValues();
+            if (!args.isEmpty() && args.get(0) instanceof StringReference) {
+                return ((StringReference) args.get(0)).value();
+            }
+        } catch (Exception ignored) {
+        }
+        return "";
+    }
+
+    private static TraceModels.Step captureStep(ThreadReference thread, HeapModel model) {
+        try {
+            model.capturing(thread);
             List<StackFrame> frames = thread.frames();
             if (frames.isEmpty()) {
                 return null;
             }
             StackFrame frame = frames.get(0);
             int line = frame.location().lineNumber();
-            Map<String, Object> locals = new LinkedHashMap<>();
-            List<Map<String, Object>> heap = TraceModels.heapList();
-            Map<Long, Map<String, Object>> heapSeen = new HashMap<>();
-
-            for (LocalVariable var : frame.visibleVariables()) {
-                Value value = frame.getValue(var);
-                Object mapped = mapValue(value, heap, heapSeen, var.name(), 0);
-                locals.put(var.name(), mapped);
+            List<LocalVariable> variables = frame.visibleVariables();
+            String[] names = new String[variables.size()];
+            Object[] values = new Object[variables.size()];
+            List<TraceModels.HeapObject> heap = TraceModels.heapList();
+            Map<Long, TraceModels.HeapObject> heapSeen = new HashMap<>();
+            // The instrumented engine caps a step's heap records the same way, and its reader relies on it.
+            int heapLimit = MAX_HEAP_OBJECTS + names.length;
+
+            Map<LocalVariable, Value> frameValues = frame.getValues(variables);
+            for (int i = 0; i < names.length; i++) {
+                LocalVariable var = variables.get(i);
+                names[i] = var.name();
+                values[i] = mapValue(frameValues.get(var), heap, heapSeen, heapLimit, model, names[i], 0);
             }
 
             Map<String, Object> focus = TraceModels.focus(null, null, null);
-            return TraceModels.step(line, locals, heap, focus.isEmpty() ? null : focus);
+            return TraceModels.step(line, names, values, heap, focus.isEmpty() ? null : focus);
         } catch (Exception ex) {
             return null;
         }
     }
 
-    private static Object mapValue(Value value, List<Map<String, Object>> heap, Map<Long, Map<String, Object>> heapSeen, String nameHint, int depth) {
+    private static Object mapValue(Value value, List<TraceModels.HeapObject> heap, Map<Long, TraceModels.HeapObject> heapSeen, int heapLimit, HeapModel model,
+            String nameHint, int depth) {
         if (value == null) {
             return null;
         }
@@ -234,145 +393,244 @@ public final class JavaTracer {
             return mapPrimitive((PrimitiveValue) value);
         }
         if (value instanceof ArrayReference) {
-            return mapArray((ArrayReference) value, heap, heapSeen, nameHint);
+            return mapArray((ArrayReference) value, heap, heapSeen, heapLimit, model, nameHint);
         }
         if (value instanceof ObjectReference) {
             ObjectReference ref = (ObjectReference) value;
-            String refId = "obj-" + ref.uniqueID();
             if (!heapSeen.containsKey(ref.uniqueID())) {
-                Map<String, Object> object = mapObject(ref, heap, heapSeen, depth + 1);
+                TraceModels.HeapObject object = mapObject(ref, heap, heapSeen, heapLimit, model, depth + 1);
                 if (object != null) {
                     heap.add(object);
                     heapSeen.put(ref.uniqueID(), object);
                 }
             }
-            return TraceModels.ref(refId);
+            return model.object(ref);
         }
         return value.toString();
     }
 
-    private static Map<String, Object> mapArray(ArrayReference array, List<Map<String, Object>> heap, Map<Long, Map<String, Object>> heapSeen, String nameHint) {
-        String refId = "arr-" + array.uniqueID();
+    private static TraceModels.Ref mapArray(ArrayReference array, List<TraceModels.HeapObject> heap, Map<Long, TraceModels.HeapObject> heapSeen, int heapLimit,
+            HeapModel model, String nameHint) {
+        TraceModels.Ref ref = model.array(array);
         if (heapSeen.containsKey(array.uniqueID())) {
-            return TraceModels.ref(refId);
+            return ref;
         }
-        List<Object> items = new ArrayList<>();
-        int count = Math.min(array.length(), MAX_ARRAY_ITEMS);
-        for (int i = 0; i < count; i++) {
-            Value value = array.getValue(i);
-            if (value instanceof PrimitiveValue) {
-                items.add(mapPrimitive((PrimitiveValue) value));
+        int size = array.length();
+        int count = Math.min(size, MAX_ARRAY_ITEMS);
+        char component = ((ArrayType) array.type()).componentSignature().charAt(0);
+        TraceModels.HeapArray arrayModel = TraceModels.heapArray(ref, nameHint, component, count, size);
+        readItems(array, 0, component, arrayModel, heap, heapSeen, heapLimit, model);
+        // Past the limit the array is still marked seen, so other refs to it do not read it again.
+        if (heap.size() < heapLimit) {
+            heap.add(arrayModel);
+        }
+        heapSeen.put(array.uniqueID(), arrayModel);
+        return ref;
+    }
+
+    // Reads target.length items of the array, starting at offset, into the target.
+    private static void readItems(ArrayReference array, int offset, char component, TraceModels.HeapArray target, List<TraceModels.HeapObject> heap,
+            Map<Long, TraceModels.HeapObject> heapSeen, int heapLimit, HeapModel model) {
+        int count = target.length;
+        for (int start = 0; start < count; start += ARRAY_READ_CHUNK) {
+            List<Value> values = array.getValues(offset + start, Math.min(ARRAY_READ_CHUNK, count - start));
+            if (component == 'L' || component == '[') {
+                for (int i = 0; i < values.size(); i++) {
+                    target.set(start + i, mapValue(values.get(i), heap, heapSeen, heapLimit, model, null, 0));
+                }
             } else {
-                items.add(mapValue(value, heap, heapSeen, null, 0));
+                readPrimitiveItems(values, component, target, start);
             }
         }
-        Map<String, Object> arrayModel = TraceModels.heapArray(refId, nameHint, items);
-        heap.add(arrayModel);
-        heapSeen.put(array.uniqueID(), arrayModel);
-        return TraceModels.ref(refId);
     }
 
-    private static Map<String, Object> mapObject(ObjectReference ref, List<Map<String, Object>> heap, Map<Long, Map<String, Object>> heapSeen, int depth) {
+    static void readPrimitiveItems(List<Value> values, char component, TraceModels.HeapArray array, int offset) {
+        int index = offset;
+        switch (component) {
+            case 'I':
+                for (Value value : values) {
+                    array.longs[index++] = ((IntegerValue) value).value();
+                }
+                break;
+            case 'J':
+                for (Value value : values) {
+                    array.longs[index++] = ((LongValue) value).value();
+                }
+                break;
+            case 'D':
+                for (Value value : values) {
+                    array.doubles[index++] = ((DoubleValue) value).value();
+                }
+                break;
+            case 'Z':
+                for (Value value : values) {
+                    array.longs[index++] = ((BooleanValue) value).value() ? 1 : 0;
+                }
+                break;
+            default:
+                for (Value value : values) {
+                    array.set(index++, mapPrimitive((PrimitiveValue) value));
+                }
+                break;
+        }
+    }
+
+    private static TraceModels.HeapObject mapObject(ObjectReference ref, List<TraceModels.HeapObject> heap, Map<Long, TraceModels.HeapObject> heapSeen, int heapLimit,
+            HeapModel model, int depth) {
         if (heapSeen.size() > MAX_HEAP_OBJECTS || depth > MAX_NODE_DEPTH) {
             return null;
         }
-        ReferenceType type = ref.referenceType();
-        List<Field> fields = type.allFields();
-        Field valueField = findField(fields, "value", "val");
-        Field nextField = findField(fields, "next");
-        Field leftField = findField(fields, "left");
-        Field rightField = findField(fields, "right");
-
-        if (valueField != null || nextField != null || leftField != null || rightField != null) {
-            String refId = "node-" + ref.uniqueID();
-            Object value = valueField != null ? mapValue(ref.getValue(valueField), heap, heapSeen, null, depth + 1) : "";
-            String next = nextField != null ? refId(ref.getValue(nextField)) : null;
-            String left = leftField != null ? refId(ref.getValue(leftField)) : null;
-            String right = rightField != null ? refId(ref.getValue(rightField)) : null;
-            Map<String, Object> node = TraceModels.heapNode(refId, unwrapRefValue(value), next, left, right);
-            if (next != null) {
-                heap.add(TraceModels.heapList("list-" + ref.uniqueID(), "list", refId));
+        long id = ref.uniqueID();
+        HeapModel.Node known = model.known(id);
+        if (known == null) {
+            HeapModel.Shape shape = model.shape(ref.referenceType());
+            if (!shape.isNode()) {
+                return null;
             }
-            return node;
+            Map<Field, Value> fields = ref.getValues(shape.fields);
+            TraceModels.Ref nodeRef = model.node(ref);
+            Value rawValue = shape.value != null ? fields.get(shape.value) : null;
+            Object value = shape.value != null ? mapValue(rawValue, heap, heapSeen, heapLimit, model, null, depth + 1) : "";
+            TraceModels.Ref next = shape.next != null ? nodeRef(fields.get(shape.next), model) : null;
+            TraceModels.Ref left = shape.left != null ? nodeRef(fields.get(shape.left), model) : null;
+            TraceModels.Ref right = shape.right != null ? nodeRef(fields.get(shape.right), model) : null;
+            TraceModels.HeapNode node = TraceModels.heapNode(nodeRef, unwrapRefValue(value), next, left, right);
+            TraceModels.HeapList list = next != null ? TraceModels.heapList(model.list(ref), "list", nodeRef) : null;
+            known = new HeapModel.Node(node, rawValue instanceof ObjectReference ? (ObjectReference) rawValue : null, list);
+            model.remember(id, known, shape);
+        } else if (known.valueObject != null) {
+            // The node is unchanged, but whatever its value refers to is mapped again for this step's heap.
+            mapValue(known.valueObject, heap, heapSeen, heapLimit, model, null, depth + 1);
         }
-        return null;
+        if (heap.size() + (known.list != null ? 2 : 1) > heapLimit) {
+            return null;
+        }
+        if (known.list != null) {
+            heap.add(known.list);
+        }
+        return known.heapNode;
     }
 
-    private static Object unwrapRefValue(Object value) {
-        if (value instanceof Map) {
-            return ((Map<?, ?>) value).get("ref");
+    // Reads the requested page once the replay captures its step; the replay stops there.
+    private static boolean readPageAt(HeapPage page, int captured, HeapModel model) {
+        if (page == null || captured != page.step) {
+            return false;
         }
-        return value;
+        page.result = readPage(page, model);
+        return true;
     }
 
-    private static Object mapPrimitive(PrimitiveValue value) {
-        String type = value.type().name();
-        switch (type) {
-            case "boolean":
-                return Boolean.parseBoolean(value.toString());
-            case "char":
-                return value.toString();
-            case "byte":
-            case "short":
-            case "int":
-            case "long":
-                return Long.parseLong(value.toString());
-            case "float":
-            case "double":
-                return Double.parseDouble(value.toString());
-            default:
-                return value.toString();
+    private static Map<String, Object> readPage(HeapPage page, HeapModel model) {
+        ObjectReference target = model.resolve(page.ref);
+        if (target == null) {
+            throw new IllegalArgumentException(page.ref + " is not on the heap at step " + page.step);
         }
+        return target instanceof ArrayReference ? readSlice((ArrayReference) target, page, model) : readNodes(target, page, model);
     }
 
-    private static String refId(Value value) {
-        if (value instanceof ObjectReference) {
-            return "node-" + ((ObjectReference) value).uniqueID();
+    private static Map<String, Object> readSlice(ArrayReference array, HeapPage page, HeapModel model) {
+        int size = array.length();
+        int offset = Math.min(page.offset, size);
+        int count = Math.min(page.limit, size - offset);
+        char component = ((ArrayType) array.type()).componentSignature().charAt(0);
+        TraceModels.HeapArray slice = TraceModels.heapArray(model.array(array), null, component, count, size);
+        List<TraceModels.HeapObject> heap = TraceModels.heapList();
+        readItems(array, offset, component, slice, heap, new HashMap<>(), Integer.MAX_VALUE, model);
+        List<Object> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            items.add(slice.item(i));
         }
-        return null;
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("kind", "array");
+        result.put("ref", page.ref);
+        result.put("offset", offset);
+        result.put("length", size);
+        result.put("items", items);
+        result.put("heap", heap);
+        return result;
     }
 
-    private static Field findField(List<Field> fields, String... names) {
-        for (String name : names) {
-            for (Field field : fields) {
-                if (field.name().equals(name)) {
-                    return field;
+    private static Map<String, Object> readNodes(ObjectReference root, HeapPage page, HeapModel model) {
+        if (!model.shape(root.referenceType()).isNode()) {
+            throw new IllegalArgumentException(page.ref + " is not an array or a node");
+        }
+        List<TraceModels.HeapObject> nodes = new ArrayList<>();
+        List<TraceModels.HeapObject> heap = TraceModels.heapList();
+        Map<Long, TraceModels.HeapObject> heapSeen = new HashMap<>();
+        ArrayDeque<ObjectReference> queue = new ArrayDeque<>();
+        Set<Long> visited = new HashSet<>();
+        queue.add(root);
+        visited.add(root.uniqueID());
+        int index = 0;
+        while (!queue.isEmpty() && nodes.size() < page.limit) {
+            ObjectReference ref = queue.poll();
+            HeapModel.Shape shape = model.shape(ref.referenceType());
+            if (!shape.isNode()) {
+                continue;
+            }
+            // Skipped nodes are mapped too, so every page numbers the nodes it walks past the same way.
+            if (index++ < page.offset) {
+                mapObject(ref, TraceModels.heapList(), new HashMap<>(), Integer.MAX_VALUE, model, 0);
+            } else {
+                TraceModels.HeapObject node = mapObject(ref, heap, heapSeen, Integer.MAX_VALUE, model, 0);
+                if (node != null) {
+                    nodes.add(node);
+                }
+            }
+            Map<Field, Value> fields = ref.getValues(shape.fields);
+            for (Field link : new Field[] {shape.next, shape.left, shape.right}) {
+                Value value = link != null ? fields.get(link) : null;
+                if (value instanceof ObjectReference && visited.add(((ObjectReference) value).uniqueID())) {
+                    queue.add((ObjectReference) value);
                 }
             }
         }
-        return null;
+        heap.removeIf(object -> object instanceof TraceModels.HeapList);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("kind", "nodes");
+        result.put("ref", page.ref);
+        result.put("offset", page.offset);
+        result.put("nodes", nodes);
+        result.put("heap", heap);
+        result.put("more", !queue.isEmpty());
+        return result;
     }
 
-    private static String extractClassName(String code) {
-        String[] tokens = code.split("\\bclass\\b");
-        if (tokens.length < 2) {
-            return null;
+    private static Object unwrapRefValue(Object value) {
+        if (value instanceof TraceModels.Ref) {
+            return ((TraceModels.Ref) value).id;
         }
-        String tail = tokens[1].trim();
-        String[] parts = tail.split("\\s+");
-        return parts.length > 0 ? parts[0] : null;
+        return value;
     }
 
-    private static LaunchingConnector findLaunchingConnector() {
-        for (LaunchingConnector connector : Bootstrap.virtualMachineManager().launchingConnectors()) {
-            if ("com.sun.jdi.CommandLineLaunch".equals(connector.name())) {
-                return connector;
-            }
+    static Object mapPrimitive(PrimitiveValue value) {
+        if (value instanceof IntegerValue) {
+            return (long) ((IntegerValue) value).value();
         }
-        throw new IllegalStateException("Could not find command line launching connector");
-    }
-
-    private static void writeInput(Process process, String input) throws IOException {
-        if (input == null) {
-            return;
+        if (value instanceof LongValue) {
+            return ((LongValue) value).value();
+        }
+        if (value instanceof DoubleValue) {
+            return ((DoubleValue) value).value();
+        }
+        if (value instanceof BooleanValue) {
+            return ((BooleanValue) value).value();
+        }
+        if (value instanceof CharValue) {
+            return String.valueOf(((CharValue) value).value());
         }
-        OutputStream out = process.getOutputStream();
-        out.write((input + "\n").getBytes(StandardCharsets.UTF_8));
-        out.flush();
+        if (value instanceof FloatValue) {
+            // Keep the float's shortest decimal form rather than its widened double expansion.
+            return Double.parseDouble(Float.toString(((FloatValue) value).value()));
+        }
+        return value.longValue();
     }
 
-    private static String readAll(InputStream stream) throws IOException {
-        return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+    private static TraceModels.Ref nodeRef(Value value, HeapModel model) {
+        if (value instanceof ObjectReference) {
+            return model.node((ObjectReference) value);
+        }
+        return null;
     }
 
     private static void deleteDirectory(File file) {
@@ -387,4 +645,63 @@ public final class JavaTracer {
         }
         file.delete();
     }
+
+    // Single-steps the program in a pooled debuggee over JDWP; supports every sampling mode.
+    private static final class JdiEngine implements TraceEngine {
+        @Override
+        public String name() {
+            return "jdi";
+        }
+
+        @Override
+        public boolean supportsStreaming() {
+            return true;
+        }
+
+        @Override
+        public boolean supportsDeltas() {
+            return true;
+        }
+
+        @Override
+        public boolean supportsSampling(String mode) {
+            return true;
+        }
+
+        // The deadline is enforced by cancelling the stage, which destroys the debuggee and unblocks the loop.
+        @Override
+        public int trace(Program program, int inputIndex, String input, Sampling sampling, CancellationToken token, TraceEngine.StepSink sink)
+                throws Exception {
+            try (CancellationToken stage = token.child(TRACE_DEADLINE_MILLIS, "Trace timed out")) {
+                String stdin = program.build.isDirect ? input : null;
+                return runWithJdi(program.classDir, program.build.mainClassName(inputIndex), program.build.primaryClassName, stdin, sampling, stage,
+                        null, sink);
+            }
+        }
+    }
+
+    static final class Program implements AutoCloseable {
+        final CodeBuilder.BuildResult build;
+        final Path classDir;
+        private final Map<String, String> failures;
+
+        private Program(CodeBuilder.BuildResult build, Path classDir, Map<String, String> failures) {
+            this.build = build;
+            this.classDir = classDir;
+            this.failures = failures;
+        }
+
+        /** Fails for an input whose harness did not compile, with that compilation error. */
+        void checkCompiled(int inputIndex) {
+            String failure = failures.get(build.mainClassName(inputIndex));
+            if (failure != null) {
+                throw new IllegalArgumentException(failure);
+            }
+        }
+
+        @Override
+        public void close() {
+            deleteDirectory(classDir.toFile());
+        }
+    }
 }
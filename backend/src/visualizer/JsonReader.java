@@ -0,0 +1,430 @@
+package visualizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pull parser that reads JSON straight from a stream, such as a request body. Callers bind the fields they
+ * want as they arrive and {@link #skipValue} the rest without building it. Reading stops with a
+ * {@link TooLargeException} once more than {@code maxBytes} have been read, and with an
+ * {@link IllegalArgumentException} on malformed JSON or nesting deeper than {@code maxDepth}.
+ */
+final class JsonReader {
+    static final int OBJECT = 1;
+    static final int ARRAY = 2;
+    static final int STRING = 3;
+    static final int NUMBER = 4;
+    static final int BOOLEAN = 5;
+    static final int NULL = 6;
+    // The closing bracket of the current object or array.
+    static final int END = 7;
+
+    private final InputStream in;
+    private final long maxBytes;
+    private final byte[] buffer = new byte[8 * 1024];
+    private final boolean[] first;
+    private byte[] scratch = new byte[256];
+    private int scratchLength;
+    private int position;
+    private int limit;
+    private long consumed;
+    private int depth;
+
+    JsonReader(InputStream in, long maxBytes, int maxDepth) {
+        this.in = in;
+        this.maxBytes = maxBytes;
+        this.first = new boolean[maxDepth];
+    }
+
+    int peek() throws IOException {
+        int next = nextNonWhitespace();
+        switch (next) {
+            case '{':
+                return OBJECT;
+            case '[':
+                return ARRAY;
+            case '"':
+                return STRING;
+            case 't':
+            case 'f':
+                return BOOLEAN;
+            case 'n':
+                return NULL;
+            case '}':
+            case ']':
+                return END;
+            case -1:
+                throw new IllegalArgumentException("Unexpected end of JSON");
+            default:
+                if (next == '-' || (next >= '0' && next <= '9')) {
+                    return NUMBER;
+                }
+                throw new IllegalArgumentException("Unexpected character '" + (char) next + "' at position " + offset());
+        }
+    }
+
+    void beginObject() throws IOException {
+        expect('{');
+        push();
+    }
+
+    void endObject() throws IOException {
+        expect('}');
+        depth--;
+    }
+
+    void beginArray() throws IOException {
+        expect('[');
+        push();
+    }
+
+    void endArray() throws IOException {
+        expect(']');
+        depth--;
+    }
+
+    /** Whether the current object or array has another member; consumes the comma before it. */
+    boolean hasNext() throws IOException {
+        int next = nextNonWhitespace();
+        if (next == '}' || next == ']') {
+            return false;
+        }
+        if (!first[depth - 1]) {
+            expect(',');
+        }
+        first[depth - 1] = false;
+        return true;
+    }
+
+    String nextName() throws IOException {
+        String name = nextString();
+        expect(':');
+        return name;
+    }
+
+    String nextString() throws IOException {
+        expect('"');
+        scratchLength = 0;
+        int high = -1;
+        while (true) {
+            if (position == limit && !fill()) {
+                throw new IllegalArgumentException("Unterminated string");
+            }
+            byte next = buffer[position++];
+            if (next == '"') {
+                break;
+            }
+            if (next != '\\') {
+                if (high >= 0) {
+                    appendCodePoint(high);
+                    high = -1;
+                }
+                append(next);
+                continue;
+            }
+            int escaped = read();
+            int value;
+            switch (escaped) {
+                case '"':
+                case '\\':
+                case '/':
+                    value = escaped;
+                    break;
+                case 'b':
+                    value = '\b';
+                    break;
+                case 'f':
+                    value = '\f';
+                    break;
+                case 'n':
+                    value = '\n';
+                    break;
+                case 'r':
+                    value = '\r';
+                    break;
+                case 't':
+                    value = '\t';
+                    break;
+                case 'u':
+                    value = hex();
+                    break;
+                case -1:
+                    throw new IllegalArgumentException("Invalid escape sequence");
+                default:
+                    throw new IllegalArgumentException("Invalid escape character: " + (char) escaped);
+            }
+            // A surrogate pair arrives as two escapes; anything else after a high surrogate leaves it unpaired.
+            if (high >= 0 && Character.isLowSurrogate((char) value)) {
+                appendCodePoint(Character.toCodePoint((char) high, (char) value));
+                high = -1;
+                continue;
+            }
+            if (high >= 0) {
+                appendCodePoint(high);
+                high = -1;
+            }
+            if (Character.isHighSurrogate((char) value)) {
+                high = value;
+            } else {
+                appendCodePoint(value);
+            }
+        }
+        if (high >= 0) {
+            appendCodePoint(high);
+        }
+        return new String(scratch, 0, scratchLength, StandardCharsets.UTF_8);
+    }
+
+    /** A {@code Long}, or a {@code Double} when the number has a fraction or exponent. */
+    Number nextNumber() throws IOException {
+        if (peek() != NUMBER) {
+            throw new IllegalArgumentException("Expected a number at position " + offset());
+        }
+        scratchLength = 0;
+        boolean decimal = false;
+        while (true) {
+            int next = peekByte();
+            if ((next >= '0' && next <= '9') || next == '-' || next == '+') {
+                append((byte) next);
+            } else if (next == '.' || next == 'e' || next == 'E') {
+                append((byte) next);
+                decimal = true;
+            } else {
+                break;
+            }
+            position++;
+        }
+        String number = new String(scratch, 0, scratchLength, StandardCharsets.US_ASCII);
+        if (decimal) {
+            return Double.valueOf(number);
+        }
+        return Long.valueOf(number);
+    }
+
+    boolean nextBoolean() throws IOException {
+        if (literal("true")) {
+            return true;
+        }
+        if (literal("false")) {
+            return false;
+        }
+        throw new IllegalArgumentException("Invalid boolean value");
+    }
+
+    void nextNull() throws IOException {
+        if (!literal("null")) {
+            throw new IllegalArgumentException("Invalid null value");
+        }
+    }
+
+    /** The next value as a tree: maps, lists, strings, numbers (Long for integers, else Double), booleans or null. */
+    Object readValue() throws IOException {
+        switch (peek()) {
+            case OBJECT: {
+                Map<String, Object> map = new HashMap<>();
+                beginObject();
+                while (hasNext()) {
+                    String name = nextName();
+                    map.put(name, readValue());
+                }
+                endObject();
+                return map;
+            }
+            case ARRAY: {
+                List<Object> list = new ArrayList<>();
+                beginArray();
+                while (hasNext()) {
+                    list.add(readValue());
+                }
+                endArray();
+                return list;
+            }
+            case STRING:
+                return nextString();
+            case NUMBER:
+                return nextNumber();
+            case BOOLEAN:
+                return nextBoolean();
+            case NULL:
+                nextNull();
+                return null;
+            default:
+                throw new IllegalArgumentException("Unexpected character at position " + offset());
+        }
+    }
+
+    /** Reads past the next value without keeping it. */
+    void skipValue() throws IOException {
+        switch (peek()) {
+            case OBJECT:
+                beginObject();
+                while (hasNext()) {
+                    skipString();
+                    expect(':');
+                    skipValue();
+                }
+                endObject();
+                break;
+            case ARRAY:
+                beginArray();
+                while (hasNext()) {
+                    skipValue();
+                }
+                endArray();
+                break;
+            case STRING:
+                skipString();
+                break;
+            default:
+                readValue();
+                break;
+        }
+    }
+
+    /** Checks that nothing but whitespace follows the value that was read. */
+    void endDocument() throws IOException {
+        if (nextNonWhitespace() != -1) {
+            throw new IllegalArgumentException("Unexpected trailing content");
+        }
+    }
+
+    private void skipString() throws IOException {
+        expect('"');
+        while (true) {
+            int next = read();
+            if (next == -1) {
+                throw new IllegalArgumentException("Unterminated string");
+            }
+            if (next == '"') {
+                return;
+            }
+            if (next == '\\') {
+                read();
+            }
+        }
+    }
+
+    private void push() {
+        if (depth == first.length) {
+            throw new IllegalArgumentException("JSON nested deeper than " + first.length + " levels");
+        }
+        first[depth++] = true;
+    }
+
+    private boolean literal(String word) throws IOException {
+        nextNonWhitespace();
+        for (int i = 0; i < word.length(); i++) {
+            if (peekByte() != word.charAt(i)) {
+                if (i == 0) {
+                    return false;
+                }
+                throw new IllegalArgumentException("Invalid literal at position " + offset());
+            }
+            position++;
+        }
+        return true;
+    }
+
+    private int hex() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(read(), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid unicode escape");
+            }
+            value = value * 16 + digit;
+        }
+        return value;
+    }
+
+    private void expect(char expected) throws IOException {
+        if (nextNonWhitespace() != expected) {
+            throw new IllegalArgumentException("Expected '" + expected + "' at position " + offset());
+        }
+        position++;
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        while (true) {
+            int next = peekByte();
+            if (next != ' ' && next != '\n' && next != '\r' && next != '\t') {
+                return next;
+            }
+            position++;
+        }
+    }
+
+    private int peekByte() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position] & 0xFF;
+    }
+
+    private int read() throws IOException {
+        int next = peekByte();
+        if (next != -1) {
+            position++;
+        }
+        return next;
+    }
+
+    private boolean fill() throws IOException {
+        int count = in.read(buffer, 0, buffer.length);
+        if (count <= 0) {
+            return false;
+        }
+        consumed += count;
+        if (consumed > maxBytes) {
+            throw new TooLargeException(maxBytes);
+        }
+        position = 0;
+        limit = count;
+        return true;
+    }
+
+    private long offset() {
+        return consumed - limit + position;
+    }
+
+    private void appendCodePoint(int codePoint) {
+        if (codePoint < 0x80) {
+            append((byte) codePoint);
+        } else if (codePoint < 0x800) {
+            append((byte) (0xC0 | (codePoint >> 6)));
+            append((byte) (0x80 | (codePoint & 0x3F)));
+        } else if (codePoint < 0x10000) {
+            append((byte) (0xE0 | (codePoint >> 12)));
+            append((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+            append((byte) (0x80 | (codePoint & 0x3F)));
+        } else {
+            append((byte) (0xF0 | (codePoint >> 18)));
+            append((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+            append((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+            append((byte) (0x80 | (codePoint & 0x3F)));
+        }
+    }
+
+    private void append(byte value) {
+        if (scratchLength == scratch.length) {
+            byte[] grown = new byte[scratch.length * 2];
+            System.arraycopy(scratch, 0, grown, 0, scratchLength);
+            scratch = grown;
+        }
+        scratch[scratchLength++] = value;
+    }
+
+    /** The body is larger than the reader was allowed to read. */
+    static final class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(long maxBytes) {
+            super("Request body is larger than " + maxBytes + " bytes");
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package visualizer;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+final class JsonWriter implements Flushable, Closeable {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_DEPTH = 256;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final boolean[] hasElements = new boolean[MAX_DEPTH];
+    private int position;
+    private int depth;
+    private boolean afterName;
+
+    JsonWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    JsonWriter name(String name) throws IOException {
+        separator();
+        writeString(name);
+        writeByte(':');
+        afterName = true;
+        return this;
+    }
+
+    JsonWriter value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        separator();
+        writeString(value);
+        return this;
+    }
+
+    JsonWriter value(long value) throws IOException {
+        separator();
+        writeLong(value);
+        return this;
+    }
+
+    JsonWriter value(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return nullValue();
+        }
+        separator();
+        writeAscii(Double.toString(value));
+        return this;
+    }
+
+    JsonWriter value(boolean value) throws IOException {
+        separator();
+        writeBytes(value ? TRUE : FALSE);
+        return this;
+    }
+
+    JsonWriter nullValue() throws IOException {
+        separator();
+        writeBytes(NULL);
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    JsonWriter value(Object value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        if (value instanceof String) {
+            return value((String) value);
+        }
+        if (value instanceof Writable) {
+            ((Writable) value).writeJson(this);
+            return this;
+        }
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return value(((Number) value).longValue());
+        }
+        if (value instanceof Double) {
+            return value(((Double) value).doubleValue());
+        }
+        if (value instanceof Float) {
+            float number = (Float) value;
+            if (Float.isNaN(number) || Float.isInfinite(number)) {
+                return nullValue();
+            }
+            separator();
+            writeAscii(Float.toString(number));
+            return this;
+        }
+        if (value instanceof Number) {
+            separator();
+            writeAscii(value.toString());
+            return this;
+        }
+        if (value instanceof Boolean) {
+            return value(((Boolean) value).booleanValue());
+        }
+        if (value instanceof Map) {
+            beginObject();
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                name(entry.getKey());
+                value(entry.getValue());
+            }
+            return endObject();
+        }
+        if (value instanceof List) {
+            beginArray();
+            List<Object> list = (List<Object>) value;
+            for (int i = 0; i < list.size(); i++) {
+                value(list.get(i));
+            }
+            return endArray();
+        }
+        return value(value.toString());
+    }
+
+    JsonWriter rawValue(byte[] json, int offset, int length) throws IOException {
+        separator();
+        if (length > buffer.length - position) {
+            drain();
+            if (length > buffer.length) {
+                writeThrough(json, offset, length);
+                return this;
+            }
+        }
+        System.arraycopy(json, offset, buffer, position, length);
+        position += length;
+        return this;
+    }
+
+    JsonWriter rawValue(ByteBuffer json) throws IOException {
+        separator();
+        if (json.remaining() > buffer.length - position) {
+            drain();
+        }
+        while (json.remaining() > buffer.length) {
+            json.get(buffer, 0, buffer.length);
+            out.write(buffer, 0, buffer.length);
+        }
+        int length = json.remaining();
+        json.get(buffer, position, length);
+        position += length;
+        return this;
+    }
+
+    /** Like {@link #rawValue(ByteBuffer)}; a compressed response copies in {@code deflated} instead of compressing the JSON. */
+    JsonWriter rawValue(ByteBuffer json, ByteBuffer deflated) throws IOException {
+        if (deflated == null || !(out instanceof Compression.Output)) {
+            return rawValue(json);
+        }
+        separator();
+        drain();
+        ((Compression.Output) out).writeDeflated(deflated, json);
+        return this;
+    }
+
+    JsonWriter newline() throws IOException {
+        writeByte('\n');
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        drain();
+        out.close();
+    }
+
+    private JsonWriter open(char bracket) throws IOException {
+        separator();
+        if (depth == MAX_DEPTH) {
+            throw new IllegalStateException("JSON nesting too deep");
+        }
+        hasElements[depth++] = false;
+        writeByte(bracket);
+        return this;
+    }
+
+    private JsonWriter close(char bracket) throws IOException {
+        depth--;
+        writeByte(bracket);
+        return this;
+    }
+
+    private void separator() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (hasElements[depth - 1]) {
+                writeByte(',');
+            }
+            hasElements[depth - 1] = true;
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        writeByte('"');
+        int length = value.length();
+        int index = 0;
+        while (index < length) {
+            // Fast path: copy runs of printable ASCII that need no escaping straight into the buffer.
+            if (position == buffer.length) {
+                drain();
+            }
+            int limit = Math.min(length, index + buffer.length - position);
+            while (index < limit) {
+                char ch = value.charAt(index);
+                if (ch < 0x20 || ch >= 0x80 || ch == '"' || ch == '\\') {
+                    break;
+                }
+                buffer[position++] = (byte) ch;
+                index++;
+            }
+            if (index < limit) {
+                index = writeSpecial(value, index);
+            }
+        }
+        writeByte('"');
+    }
+
+    private int writeSpecial(String value, int index) throws IOException {
+        char ch = value.charAt(index);
+        switch (ch) {
+            case '"':
+                writeByte('\\');
+                writeByte('"');
+                return index + 1;
+            case '\\':
+                writeByte('\\');
+                writeByte('\\');
+                return index + 1;
+            case '\n':
+                writeByte('\\');
+                writeByte('n');
+                return index + 1;
+            case '\r':
+                writeByte('\\');
+                writeByte('r');
+                return index + 1;
+            case '\t':
+                writeByte('\\');
+                writeByte('t');
+                return index + 1;
+            default:
+                break;
+        }
+        if (ch < 0x20) {
+            require(6);
+            buffer[position++] = '\\';
+            buffer[position++] = 'u';
+            buffer[position++] = '0';
+            buffer[position++] = '0';
+            buffer[position++] = HEX[ch >> 4];
+            buffer[position++] = HEX[ch & 0xF];
+            return index + 1;
+        }
+        require(4);
+        if (ch < 0x800) {
+            buffer[position++] = (byte) (0xC0 | (ch >> 6));
+            buffer[position++] = (byte) (0x80 | (ch & 0x3F));
+            return index + 1;
+        }
+        if (Character.isHighSurrogate(ch) && index + 1 < value.length() && Character.isLowSurrogate(value.charAt(index + 1))) {
+            int codePoint = Character.toCodePoint(ch, value.charAt(index + 1));
+            buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+            buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            return index + 2;
+        }
+        if (Character.isSurrogate(ch)) {
+            ch = '?';
+        }
+        buffer[position++] = (byte) (0xE0 | (ch >> 12));
+        buffer[position++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+        buffer[position++] = (byte) (0x80 | (ch & 0x3F));
+        return index + 1;
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            writeBytes(MIN_LONG);
+            return;
+        }
+        require(20);
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int start = position;
+        do {
+            buffer[position++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        for (int left = start, right = position - 1; left < right; left++, right--) {
+            byte swap = buffer[left];
+            buffer[left] = buffer[right];
+            buffer[right] = swap;
+        }
+    }
+
+    private void writeAscii(String value) throws IOException {
+        require(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer[position++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        require(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void writeByte(char value) throws IOException {
+        if (position == buffer.length) {
+            drain();
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    private void require(int bytes) throws IOException {
+        if (position + bytes > buffer.length) {
+            drain();
+        }
+    }
+
+    private void writeThrough(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+    }
+
+    private void drain() throws IOException {
+        if (position == 0) {
+            return;
+        }
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+
+    interface Writable {
+        void writeJson(JsonWriter writer) throws IOException;
+    }
+}
@@ -0,0 +1,203 @@
+package visualizer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * How debuggee JVMs are launched: heap, stack, JIT and CPU options, a class data sharing archive, a cap
+ * on threads started by traced code, and optional OS limits (a command prefix, or a cgroup v2 group per
+ * debuggee). A named profile supplies the defaults and each {@code debuggee.*} setting overrides one.
+ */
+final class LaunchProfile {
+    static final LaunchProfile CURRENT = fromSettings();
+
+    final String name;
+    final String maxHeap;
+    final String stackSize;
+    final int tieredStopAtLevel;
+    final String share;
+    final Path cdsArchive;
+    final int activeProcessors;
+    final boolean serialGc;
+    final int maxThreads;
+    final List<String> extraOptions;
+    final List<String> commandPrefix;
+    final Path cgroupParent;
+    final String cgroupMemoryMax;
+    final String cgroupCpuMax;
+    final int cgroupPidsMax;
+
+    private LaunchProfile(String name, String maxHeap, String stackSize, int tieredStopAtLevel, String share, Path cdsArchive,
+            int activeProcessors, boolean serialGc, int maxThreads, List<String> extraOptions, List<String> commandPrefix, Path cgroupParent,
+            String cgroupMemoryMax, String cgroupCpuMax, int cgroupPidsMax) {
+        this.name = name;
+        this.maxHeap = maxHeap;
+        this.stackSize = stackSize;
+        this.tieredStopAtLevel = tieredStopAtLevel;
+        this.share = share;
+        this.cdsArchive = cdsArchive;
+        this.activeProcessors = activeProcessors;
+        this.serialGc = serialGc;
+        this.maxThreads = maxThreads;
+        this.extraOptions = extraOptions;
+        this.commandPrefix = commandPrefix;
+        this.cgroupParent = cgroupParent;
+        this.cgroupMemoryMax = cgroupMemoryMax;
+        this.cgroupCpuMax = cgroupCpuMax;
+        this.cgroupPidsMax = cgroupPidsMax;
+    }
+
+    private static LaunchProfile fromSettings() {
+        String name = Settings.stringValue("debuggee.profile", "standard").toLowerCase(Locale.ROOT);
+        // Defaults per profile: heap, stack, tiered level, processors, serial GC, thread cap.
+        String heap;
+        String stack;
+        int tiered;
+        int processors;
+        boolean serial;
+        int threads;
+        switch (name) {
+            case "dense":
+                heap = "96m";
+                stack = "512k";
+                tiered = 1;
+                processors = 1;
+                serial = true;
+                threads = 8;
+                break;
+            case "unrestricted":
+                heap = "";
+                stack = "";
+                tiered = 0;
+                processors = 0;
+                serial = false;
+                threads = 0;
+                break;
+            default:
+                name = "standard";
+                heap = "256m";
+                stack = "1m";
+                tiered = 1;
+                processors = 1;
+                serial = true;
+                threads = 32;
+        }
+        heap = Settings.stringValue("debuggee.maxHeap", heap);
+        // pids.max follows the thread cap in effect, so raising debuggee.maxThreads does not hit it.
+        int maxThreads = Settings.intValue("debuggee.maxThreads", threads);
+        String archive = Settings.stringValue("debuggee.cdsArchive", "");
+        String cgroup = Settings.stringValue("debuggee.cgroup.parent", "");
+        return new LaunchProfile(
+                name,
+                heap,
+                Settings.stringValue("debuggee.stackSize", stack),
+                Settings.intValue("debuggee.tieredStopAtLevel", tiered),
+                Settings.stringValue("debuggee.share", "auto"),
+                archive.isEmpty() ? null : Path.of(archive).toAbsolutePath(),
+                Settings.intValue("debuggee.activeProcessors", processors),
+                Settings.booleanValue("debuggee.serialGc", serial),
+                maxThreads,
+                words(Settings.stringValue("debuggee.jvmOptions", "")),
+                words(Settings.stringValue("debuggee.commandPrefix", "")),
+                cgroup.isEmpty() ? null : Path.of(cgroup),
+                Settings.optionalValue("debuggee.cgroup.memoryMax", "512M"),
+                Settings.stringValue("debuggee.cgroup.cpuMax", "100000 100000"),
+                Settings.intValue("debuggee.cgroup.pidsMax", maxThreads > 0 ? maxThreads + 64 : 0));
+    }
+
+    private static List<String> words(String value) {
+        return value.isEmpty() ? List.of() : Arrays.asList(value.split("\\s+"));
+    }
+
+    // The command prefix, java and the JVM options; the caller appends the debug agent, classpath and main class.
+    List<String> command(String javaBinary, boolean useArchive) {
+        List<String> command = new ArrayList<>(commandPrefix);
+        command.add(javaBinary);
+        if (!maxHeap.isEmpty()) {
+            command.add("-Xmx" + maxHeap);
+        }
+        if (!stackSize.isEmpty()) {
+            command.add("-Xss" + stackSize);
+        }
+        if (tieredStopAtLevel > 0) {
+            command.add("-XX:TieredStopAtLevel=" + tieredStopAtLevel);
+        }
+        if (!share.isEmpty()) {
+            command.add("-Xshare:" + share);
+        }
+        // Checked per launch: the archive may be created by a training run after the server started.
+        if (useArchive && cdsArchive != null && Files.isRegularFile(cdsArchive)) {
+            command.add("-XX:SharedArchiveFile=" + cdsArchive);
+        }
+        if (activeProcessors > 0) {
+            command.add("-XX:ActiveProcessorCount=" + activeProcessors);
+        }
+        if (serialGc) {
+            command.add("-XX:+UseSerialGC");
+        }
+        command.addAll(extraOptions);
+        return command;
+    }
+
+    /** Places a freshly started debuggee in its own cgroup under {@code cgroupParent}; returns the group or null. */
+    Path confine(long pid) throws IOException {
+        if (cgroupParent == null) {
+            return null;
+        }
+        Path group = cgroupParent.resolve("debuggee-" + pid);
+        Files.createDirectories(group);
+        try {
+            limit(group, "memory.max", cgroupMemoryMax);
+            limit(group, "memory.swap.max", cgroupMemoryMax.isEmpty() ? "" : "0");
+            limit(group, "cpu.max", cgroupCpuMax);
+            limit(group, "pids.max", cgroupPidsMax > 0 ? String.valueOf(cgroupPidsMax) : "");
+            Files.write(group.resolve("cgroup.procs"), String.valueOf(pid).getBytes(StandardCharsets.US_ASCII));
+            return group;
+        } catch (IOException ex) {
+            release(group);
+            throw new IOException("Could not apply cgroup limits in " + group + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    private static void limit(Path group, String file, String value) throws IOException {
+        Path control = group.resolve(file);
+        if (!value.isEmpty() && Files.exists(control)) {
+            Files.write(control, value.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    // A cgroup can only be removed once its processes have exited.
+    static void release(Path group) {
+        if (group == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(group);
+        } catch (IOException ex) {
+            System.err.println("Could not remove cgroup " + group + ": " + ex.getMessage());
+        }
+    }
+
+    Map<String, Object> describe() {
+        Map<String, Object> profile = new LinkedHashMap<>();
+        profile.put("profile", name);
+        profile.put("maxHeap", maxHeap);
+        profile.put("stackSize", stackSize);
+        profile.put("tieredStopAtLevel", tieredStopAtLevel);
+        profile.put("share", share);
+        profile.put("cdsArchive", cdsArchive != null && Files.isRegularFile(cdsArchive) ? cdsArchive.toString() : null);
+        profile.put("activeProcessors", activeProcessors);
+        profile.put("serialGc", serialGc);
+        profile.put("maxThreads", maxThreads);
+        profile.put("cgroup", cgroupParent == null ? null : cgroupParent.toString());
+        return profile;
+    }
+}
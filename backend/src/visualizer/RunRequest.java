@@ -0,0 +1,145 @@
+package visualizer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The body of {@code /run} and {@code /run/stream}, bound field by field while it is read. As with the parsed
+ * tree it replaces, text fields take the text of whatever value was sent, inputs that are not objects are
+ * dropped and unknown fields are skipped. {@code sampling} and {@code engine} are kept as raw values for
+ * {@link Sampling#parse} and {@link TraceEngines#parse}, which validate them.
+ */
+final class RunRequest {
+    final String code;
+    final String language;
+    final String title;
+    final List<Input> inputs;
+    final String traceFormat;
+    final Object keyframeInterval;
+    final Object sampling;
+    final Object engine;
+
+    private RunRequest(String code, String language, String title, List<Input> inputs, String traceFormat, Object keyframeInterval,
+            Object sampling, Object engine) {
+        this.code = code;
+        this.language = language;
+        this.title = title;
+        this.inputs = inputs;
+        this.traceFormat = traceFormat;
+        this.keyframeInterval = keyframeInterval;
+        this.sampling = sampling;
+        this.engine = engine;
+    }
+
+    static RunRequest read(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonReader.OBJECT) {
+            throw new IllegalArgumentException("Invalid JSON payload");
+        }
+        String code = null;
+        String language = null;
+        String title = null;
+        List<Input> inputs = Collections.emptyList();
+        String traceFormat = null;
+        Object keyframeInterval = null;
+        Object sampling = null;
+        Object engine = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "code":
+                    code = text(reader);
+                    break;
+                case "language":
+                    language = text(reader);
+                    break;
+                case "title":
+                    title = text(reader);
+                    break;
+                case "inputs":
+                    inputs = inputs(reader);
+                    break;
+                case "traceFormat":
+                    traceFormat = text(reader);
+                    break;
+                case "keyframeInterval":
+                    keyframeInterval = reader.readValue();
+                    break;
+                case "sampling":
+                    sampling = reader.readValue();
+                    break;
+                case "engine":
+                    engine = reader.readValue();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        reader.endDocument();
+        return new RunRequest(code, language, title, inputs, traceFormat, keyframeInterval, sampling, engine);
+    }
+
+    private static List<Input> inputs(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonReader.ARRAY) {
+            reader.skipValue();
+            return Collections.emptyList();
+        }
+        List<Input> inputs = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonReader.OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            String id = null;
+            String label = null;
+            String value = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "id":
+                        id = text(reader);
+                        break;
+                    case "label":
+                        label = text(reader);
+                        break;
+                    case "value":
+                        value = text(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            inputs.add(new Input(id, label, value));
+        }
+        reader.endArray();
+        return inputs;
+    }
+
+    // Strings as they are; other values as the text of what JsonReader.readValue builds for them: integers as a
+    // Long ("1"), other numbers as a Double ("1.0", "100.0" for 1e2), maps and lists as their toString.
+    private static String text(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonReader.STRING) {
+            return reader.nextString();
+        }
+        Object value = reader.readValue();
+        return value == null ? null : value.toString();
+    }
+
+    static final class Input {
+        final String id;
+        final String label;
+        final String value;
+
+        Input(String id, String label, String value) {
+            this.id = id;
+            this.label = label;
+            this.value = value;
+        }
+    }
+}
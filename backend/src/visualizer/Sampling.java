@@ -0,0 +1,138 @@
+package visualizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Which steps a trace captures. {@code full} captures every line. {@code lines} stops only at the given
+ * lines through breakpoints, without single-stepping. {@code every} single-steps but captures every Nth
+ * line. {@code watch} captures the line after a watched field is assigned. The step cap counts captured
+ * steps, so the sparse modes reach much further into large inputs.
+ */
+final class Sampling {
+    static final String FULL_MODE = "full";
+    static final String LINES_MODE = "lines";
+    static final String EVERY_MODE = "every";
+    static final String WATCH_MODE = "watch";
+    static final String[] MODES = {FULL_MODE, LINES_MODE, EVERY_MODE, WATCH_MODE};
+
+    static final Sampling FULL = new Sampling(FULL_MODE, new int[0], 1, new String[0]);
+
+    final String mode;
+    final int[] lines;
+    final int every;
+    final String[] fields;
+
+    private Sampling(String mode, int[] lines, int every, String[] fields) {
+        this.mode = mode;
+        this.lines = lines;
+        this.every = every;
+        this.fields = fields;
+    }
+
+    // {"mode": "lines", "lines": [5, 9]}, {"mode": "every", "every": 10} or {"mode": "watch", "fields": ["next"]}.
+    static Sampling parse(Object raw) {
+        if (raw == null) {
+            return FULL;
+        }
+        if (!(raw instanceof Map)) {
+            throw new IllegalArgumentException("sampling must be an object");
+        }
+        Map<?, ?> options = (Map<?, ?>) raw;
+        Object mode = options.get("mode");
+        if (mode == null || FULL_MODE.equals(mode)) {
+            return FULL;
+        }
+        if (LINES_MODE.equals(mode)) {
+            int[] lines = numbers(options.get("lines"));
+            if (lines.length == 0) {
+                throw new IllegalArgumentException("sampling.lines must list at least one line");
+            }
+            return new Sampling(LINES_MODE, lines, 1, new String[0]);
+        }
+        if (EVERY_MODE.equals(mode)) {
+            Object every = options.get("every");
+            if (!(every instanceof Number) || ((Number) every).intValue() < 1) {
+                throw new IllegalArgumentException("sampling.every must be a positive number");
+            }
+            return new Sampling(EVERY_MODE, new int[0], ((Number) every).intValue(), new String[0]);
+        }
+        if (WATCH_MODE.equals(mode)) {
+            return new Sampling(WATCH_MODE, new int[0], 1, names(options.get("fields")));
+        }
+        throw new IllegalArgumentException("Unknown sampling mode: " + mode);
+    }
+
+    private static int[] numbers(Object raw) {
+        if (!(raw instanceof List)) {
+            return new int[0];
+        }
+        List<?> items = (List<?>) raw;
+        int[] numbers = new int[items.size()];
+        for (int i = 0; i < numbers.length; i++) {
+            if (!(items.get(i) instanceof Number)) {
+                throw new IllegalArgumentException("sampling.lines must be numbers");
+            }
+            numbers[i] = ((Number) items.get(i)).intValue();
+        }
+        Arrays.sort(numbers);
+        return Arrays.stream(numbers).distinct().toArray();
+    }
+
+    private static String[] names(Object raw) {
+        List<String> names = new ArrayList<>();
+        if (raw instanceof List) {
+            for (Object item : (List<?>) raw) {
+                if (item instanceof String && !((String) item).isBlank()) {
+                    names.add(((String) item).trim());
+                }
+            }
+        }
+        String[] sorted = names.toArray(new String[0]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    boolean isFull() {
+        return this == FULL;
+    }
+
+    // An empty field list watches every field of the traced classes.
+    boolean watches(String field) {
+        return fields.length == 0 || Arrays.binarySearch(fields, field) >= 0;
+    }
+
+    // Part of the trace cache key; equal options give equal keys.
+    String key() {
+        switch (mode) {
+            case LINES_MODE:
+                return LINES_MODE + Arrays.toString(lines);
+            case EVERY_MODE:
+                return EVERY_MODE + every;
+            case WATCH_MODE:
+                return WATCH_MODE + Arrays.toString(fields);
+            default:
+                return FULL_MODE;
+        }
+    }
+
+    Map<String, Object> describe() {
+        Map<String, Object> sampling = new LinkedHashMap<>();
+        sampling.put("mode", mode);
+        if (LINES_MODE.equals(mode)) {
+            List<Object> list = new ArrayList<>();
+            for (int line : lines) {
+                list.add(line);
+            }
+            sampling.put("lines", list);
+        } else if (EVERY_MODE.equals(mode)) {
+            sampling.put("every", every);
+        } else if (WATCH_MODE.equals(mode)) {
+            sampling.put("fields", Arrays.asList((Object[]) fields));
+        }
+        return sampling;
+    }
+}
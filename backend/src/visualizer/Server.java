@@ -6,113 +6,662 @@ import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 
 public final class Server {
     private static final int PORT = 8080;
+    private static final int TRACE_PARALLELISM = Math.max(1, Settings.intValue("trace.parallelism", Math.min(4, Runtime.getRuntime().availableProcessors())));
+    private static final boolean TRUST_FORWARDED_FOR = Settings.booleanValue("admission.trustForwardedFor", false);
+    private static final long MAX_BODY_BYTES = Math.max(1, Settings.longValue("request.maxBytes", 4L * 1024 * 1024));
+    private static final int MAX_BODY_DEPTH = Math.max(1, Settings.intValue("request.maxDepth", 64));
+    private static final long PROBE_MILLIS = Math.max(0, Settings.longValue("request.probeMillis", 1000));
+    private static final AdmissionController ADMISSION = new AdmissionController(
+            Settings.intValue("admission.maxConcurrent", 4),
+            Settings.intValue("admission.maxQueued", 16),
+            Settings.intValue("admission.maxPerClient", 2),
+            Settings.longValue("admission.maxWaitMillis", 10000));
+    private static final ExecutorService TRACE_EXECUTOR = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("trace-worker-", 0).factory());
 
     public static void main(String[] args) throws Exception {
         HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
         server.createContext("/run", new RunHandler());
-        // Use a fixed thread pool to prevent resource exhaustion from too many concurrent requests
-        server.setExecutor(Executors.newFixedThreadPool(10));
+        server.createContext("/run/stream", new StreamHandler());
+        server.createContext("/heap", new HeapHandler());
+        server.createContext("/stats", new StatsHandler());
+        // Requests run on virtual threads; admission and the debuggee pool bound the real work, not thread count.
+        server.setExecutor(Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("http-", 0).factory()));
         server.start();
+        DebuggeePool.warmUp();
         System.out.println("Java tracer running on http://localhost:" + PORT);
     }
 
     private static final class RunHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                Headers headers = exchange.getResponseHeaders();
-                headers.set("Access-Control-Allow-Origin", "*");
-                headers.set("Access-Control-Allow-Methods", "POST, OPTIONS");
-                headers.set("Access-Control-Allow-Headers", "Content-Type");
-                exchange.sendResponseHeaders(204, -1);
+            if (!acceptPost(exchange)) {
                 return;
             }
-            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                exchange.sendResponseHeaders(405, -1);
-                return;
+            List<StepBuffer> buffers = Collections.synchronizedList(new ArrayList<>());
+            CancellationToken token = new CancellationToken();
+            OutputStream committed = null;
+            try {
+                RunPayload run = RunPayload.parse(RunRequest.read(bodyReader(exchange)));
+                TraceCache.Cached[] cached = run.cachedTraces();
+                List<Map<String, Object>> results = new ArrayList<>(Collections.nCopies(run.cases.size(), null));
+                try (AdmissionController.Ticket ticket = run.needsTracing(cached) ? ADMISSION.admit(clientId(exchange)) : null;
+                        JavaTracer.Program program = ticket != null ? run.prepare(token) : null) {
+                    // Compiled, so the reply is a 200; a JSON reply commits now and the client is probed while the cases trace.
+                    // Binary replies cannot take the probe's whitespace and only stop at the deadline.
+                    if (program != null && PROBE_MILLIS > 0 && !BinaryTrace.accepted(exchange.getRequestHeaders().getFirst("Accept"))) {
+                        exchange.getResponseHeaders().add("Vary", "Accept");
+                        committed = startJson(exchange, 200);
+                    }
+                    DisconnectProbe probe = committed != null ? new DisconnectProbe(committed, token) : null;
+                    try {
+                        forEachCase(run.cases.size(), index -> results.set(index, traceCase(program, run, index, cached[index], buffers, token)));
+                    } finally {
+                        if (probe != null) {
+                            probe.stop();
+                        }
+                    }
+                }
+                Map<String, Object> response = run.delta
+                        ? TraceModels.deltaTraceFile(run.title, run.language, run.code, run.keyframeInterval, results)
+                        : TraceModels.traceFile(run.title, run.language, run.code, results);
+                if (!run.sampling.isFull()) {
+                    response.put("sampling", run.sampling.describe());
+                }
+                if (run.engine != JavaTracer.ENGINE) {
+                    response.put("engine", run.engine.name());
+                }
+                String snapshot = run.snapshot();
+                if (snapshot != null) {
+                    response.put("snapshot", snapshot);
+                }
+                if (committed != null) {
+                    writeCommitted(committed, response);
+                } else {
+                    sendTrace(exchange, response);
+                }
+            } catch (AdmissionController.RejectedException ex) {
+                sendRejected(exchange, ex);
+            } catch (Exception ex) {
+                if (committed == null) {
+                    ex.printStackTrace();
+                    sendError(exchange, ex);
+                } else if (!token.isCancelled()) {
+                    ex.printStackTrace();
+                    writeCommittedError(committed, ex);
+                }
+            } finally {
+                for (StepBuffer buffer : buffers) {
+                    buffer.close();
+                }
+            }
+        }
+
+        // Uncached traces are written from their step buffer, which stays open in buffers until the response is sent.
+        private Map<String, Object> traceCase(JavaTracer.Program program, RunPayload run, int index, TraceCache.Cached cached,
+                List<StepBuffer> buffers, CancellationToken token) {
+            InputSpec inputCase = run.cases.get(index);
+            if (cached != null) {
+                return TraceModels.inputCase(inputCase.id, inputCase.label, inputCase.value, cached);
             }
-            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            TraceDelta encoder = run.delta ? new TraceDelta(run.keyframeInterval) : null;
+            StepBuffer buffer = new StepBuffer();
+            buffers.add(buffer);
             try {
-                Object parsed = SimpleJson.parse(body);
-                if (!(parsed instanceof Map)) {
-                    throw new IllegalArgumentException("Invalid JSON payload");
+                run.trace(program, index, token, step -> buffer.append(encoder != null ? encoder.next(step) : step));
+                if (!TraceCache.SHARED.enabled()) {
+                    return TraceModels.inputCase(inputCase.id, inputCase.label, inputCase.value, buffer);
                 }
-                @SuppressWarnings("unchecked")
-                Map<String, Object> payload = (Map<String, Object>) parsed;
-                String code = stringValue(payload.get("code"));
-                String language = stringValue(payload.get("language"));
-                String title = stringValue(payload.get("title"));
-                if (code == null || code.isBlank()) {
-                    throw new IllegalArgumentException("Code is required");
+                TraceCache.Entry entry = buffer.toEntry();
+                buffer.close();
+                TraceCache.SHARED.put(run.cacheKey(index), entry);
+                return TraceModels.inputCase(inputCase.id, inputCase.label, inputCase.value, entry);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                return TraceModels.failedInputCase(inputCase.id, inputCase.label, inputCase.value, errorMessage(ex));
+            }
+        }
+    }
+
+    private static final class StreamHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!acceptPost(exchange)) {
+                return;
+            }
+            RunPayload run;
+            TraceCache.Cached[] cached;
+            AdmissionController.Ticket ticket = null;
+            JavaTracer.Program program;
+            CancellationToken token = new CancellationToken();
+            try {
+                run = RunPayload.parse(RunRequest.read(bodyReader(exchange)));
+                cached = run.cachedTraces();
+                if (run.needsTracing(cached)) {
+                    ticket = ADMISSION.admit(clientId(exchange));
                 }
-                if (language == null) {
-                    language = "Java";
+                program = ticket != null ? run.prepare(token) : null;
+            } catch (AdmissionController.RejectedException ex) {
+                sendRejected(exchange, ex);
+                return;
+            } catch (Exception ex) {
+                if (ticket != null) {
+                    ticket.close();
                 }
+                ex.printStackTrace();
+                sendError(exchange, ex);
+                return;
+            }
+
+            boolean binary = BinaryTrace.accepted(exchange.getRequestHeaders().getFirst("Accept"));
+            Headers headers = exchange.getResponseHeaders();
+            setCorsHeaders(headers);
+            headers.set("Content-Type", binary ? BinaryTrace.MEDIA_TYPE : "application/x-ndjson");
+            headers.set("Cache-Control", "no-cache");
+            headers.add("Vary", "Accept");
+            OutputStream body = startBody(exchange, 200);
+            try (TraceStream stream = new TraceStream(binary ? new BinaryTrace.Encoder(body) : body)) {
                 List<Map<String, Object>> inputs = new ArrayList<>();
-                Object inputObj = payload.get("inputs");
-                if (inputObj instanceof List) {
-                    @SuppressWarnings("unchecked")
-                    List<Object> rawInputs = (List<Object>) inputObj;
-                    for (Object entry : rawInputs) {
-                        if (!(entry instanceof Map)) {
-                            continue;
+                for (InputSpec inputCase : run.cases) {
+                    inputs.add(TraceModels.streamInput(inputCase.id, inputCase.label, inputCase.value));
+                }
+                Map<String, Object> start = TraceModels.streamStart(run.title, run.language, run.code, run.delta ? run.keyframeInterval : 0, inputs);
+                if (!run.sampling.isFull()) {
+                    start.put("sampling", run.sampling.describe());
+                }
+                if (run.engine != JavaTracer.ENGINE) {
+                    start.put("engine", run.engine.name());
+                }
+                String snapshot = run.snapshot();
+                if (snapshot != null) {
+                    start.put("snapshot", snapshot);
+                }
+                stream.write(start, true);
+                forEachCase(run.cases.size(), index -> streamCase(program, run, index, cached[index], stream, token));
+                stream.write(TraceModels.streamEnd(), true);
+            } catch (Exception ex) {
+                token.cancel("Client disconnected");
+                System.err.println("Trace stream aborted: " + errorMessage(ex));
+            } finally {
+                if (program != null) {
+                    program.close();
+                }
+                if (ticket != null) {
+                    ticket.close();
+                }
+            }
+        }
+
+        private void streamCase(JavaTracer.Program program, RunPayload run, int index, TraceCache.Cached cached, TraceStream stream,
+                CancellationToken token) {
+            InputSpec inputCase = run.cases.get(index);
+            TraceDelta encoder = run.delta ? new TraceDelta(run.keyframeInterval) : null;
+            int[] emitted = new int[1];
+            try (StepBuffer captured = TraceCache.SHARED.enabled() ? new StepBuffer() : null) {
+                if (cached != null) {
+                    for (int i = 0; i < cached.steps(); i++) {
+                        stream.write(TraceModels.streamStep(inputCase.id, i, cached.step(i)), i == 0);
+                    }
+                    stream.write(TraceModels.streamDone(inputCase.id, cached.steps()), true);
+                    return;
+                }
+                // Engines that deliver steps in batches are sent a case at a time, once the case has finished.
+                List<Map<String, Object>> batch = run.engine.supportsStreaming() ? null : new ArrayList<>();
+                try {
+                    int steps = run.trace(program, index, token, step -> {
+                        Object encoded = encoder != null ? encoder.next(step) : step;
+                        Map<String, Object> event = TraceModels.streamStep(inputCase.id, emitted[0], encoded);
+                        if (batch != null) {
+                            batch.add(event);
+                        } else {
+                            stream.write(event, emitted[0] == 0);
                         }
-                        @SuppressWarnings("unchecked")
-                        Map<String, Object> inputMap = (Map<String, Object>) entry;
-                        String id = stringValue(inputMap.get("id"));
-                        String label = stringValue(inputMap.get("label"));
-                        String value = stringValue(inputMap.get("value"));
-                        if (id == null) {
-                            id = "input-" + (inputs.size() + 1);
+                        emitted[0]++;
+                        if (captured != null) {
+                            captured.append(encoded);
                         }
-                        if (label == null) {
-                            label = "Input " + (inputs.size() + 1);
+                    });
+                    if (batch != null) {
+                        for (Map<String, Object> event : batch) {
+                            stream.write(event, false);
                         }
-                        List<Map<String, Object>> trace = JavaTracer.trace(code, value);
-                        inputs.add(TraceModels.inputCase(id, label, value, trace));
                     }
+                    stream.write(TraceModels.streamDone(inputCase.id, steps), true);
+                    if (captured != null) {
+                        TraceCache.SHARED.put(run.cacheKey(index), captured.toEntry());
+                    }
+                } catch (Exception ex) {
+                    if (ex instanceof IOException) {
+                        throw (IOException) ex;
+                    }
+                    stream.write(TraceModels.streamError(inputCase.id, errorMessage(ex)), true);
                 }
-                Map<String, Object> response = TraceModels.traceFile(
-                        title != null ? title : "Java Visualizer",
-                        language,
-                        code,
-                        inputs
-                );
-                sendJson(exchange, 200, response);
+            } catch (IOException ex) {
+                // The client has gone; stop the other cases' debuggees instead of tracing into a closed socket.
+                token.cancel("Client disconnected");
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    private static final class HeapHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!acceptPost(exchange)) {
+                return;
+            }
+            try {
+                JsonReader body = bodyReader(exchange);
+                Object value = body.readValue();
+                body.endDocument();
+                HeapPage page = HeapPage.parse(value);
+                HeapSnapshots.Snapshot snapshot = HeapSnapshots.SHARED.get(page.snapshot);
+                if (snapshot == null) {
+                    Map<String, Object> error = new LinkedHashMap<>();
+                    error.put("error", "Unknown or expired snapshot; run the code again");
+                    sendJson(exchange, 404, error);
+                    return;
+                }
+                if (page.input >= snapshot.inputs.size()) {
+                    throw new IllegalArgumentException("The snapshot has no input " + page.input);
+                }
+                Map<String, Object> result = JavaTracer.pageParked(page);
+                if (result == null) {
+                    replay(exchange, snapshot, page);
+                    return;
+                }
+                sendJson(exchange, 200, result);
+            } catch (AdmissionController.RejectedException ex) {
+                sendRejected(exchange, ex);
             } catch (Exception ex) {
                 ex.printStackTrace();
-                Map<String, Object> error = new LinkedHashMap<>();
-                error.put("error", ex.getMessage());
-                sendJson(exchange, 400, error);
+                sendError(exchange, ex);
+            }
+        }
+
+        // Replays the input to the page's step. Once compiled the reply is a 200, so it commits and the client is
+        // probed while the replay runs; later errors go in its body.
+        private void replay(HttpExchange exchange, HeapSnapshots.Snapshot snapshot, HeapPage page) throws Exception {
+            CancellationToken token = new CancellationToken();
+            String input = snapshot.inputs.get(page.input);
+            OutputStream committed = null;
+            Map<String, Object> result;
+            AdmissionController.Ticket ticket = ADMISSION.admit(clientId(exchange));
+            // Only the paged input's harness is compiled; harnesses are not traced, so its steps and refs are the original's.
+            try (JavaTracer.Program program = JavaTracer.prepare(snapshot.code, Collections.singletonList(input), token)) {
+                committed = PROBE_MILLIS > 0 ? startJson(exchange, 200) : null;
+                DisconnectProbe probe = committed != null ? new DisconnectProbe(committed, token) : null;
+                try {
+                    result = JavaTracer.page(program, 0, input, snapshot.sampling, page, token);
+                } finally {
+                    if (probe != null) {
+                        probe.stop();
+                    }
+                }
+            } catch (Exception ex) {
+                if (committed == null) {
+                    throw ex;
+                }
+                if (!token.isCancelled()) {
+                    ex.printStackTrace();
+                    writeCommittedError(committed, ex);
+                }
+                return;
+            } finally {
+                ticket.close();
+            }
+            if (committed != null) {
+                writeCommitted(committed, result);
+            } else {
+                sendJson(exchange, 200, result);
             }
         }
+    }
 
-        private String stringValue(Object value) {
-            return value == null ? null : value.toString();
+    private static final class StatsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("admission", ADMISSION.stats());
+            stats.put("traceCache", TraceCache.SHARED.stats());
+            stats.put("engines", TraceEngines.stats());
+            stats.put("debuggee", LaunchProfile.CURRENT.describe());
+            sendJson(exchange, 200, stats);
         }
+    }
 
-        private void sendJson(HttpExchange exchange, int status, Map<String, Object> payload) throws IOException {
-            String json = SimpleJson.stringify(payload);
-            Headers headers = exchange.getResponseHeaders();
-            headers.set("Content-Type", "application/json");
-            headers.set("Access-Control-Allow-Origin", "*");
-            headers.set("Access-Control-Allow-Methods", "POST, OPTIONS");
-            headers.set("Access-Control-Allow-Headers", "Content-Type");
-            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
-            exchange.sendResponseHeaders(status, bytes.length);
-            try (OutputStream out = exchange.getResponseBody()) {
-                out.write(bytes);
+    private static void forEachCase(int count, IntConsumer task) throws Exception {
+        int workers = Math.min(count, TRACE_PARALLELISM);
+        AtomicInteger next = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            futures.add(TRACE_EXECUTOR.submit(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < count) {
+                    try {
+                        task.accept(index);
+                    } catch (RuntimeException ex) {
+                        // No worker starts another case after a failure.
+                        next.set(count);
+                        throw ex;
+                    }
+                }
+            }));
+        }
+        // Every worker is waited for, even after one fails, since they share the caller's program and
+        // debuggees and the caller releases those once this returns.
+        ExecutionException failure = null;
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (ExecutionException ex) {
+                    failure = failure != null ? failure : ex;
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static boolean acceptPost(HttpExchange exchange) throws IOException {
+        if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
+            setCorsHeaders(exchange.getResponseHeaders());
+            exchange.sendResponseHeaders(204, -1);
+            return false;
+        }
+        if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            return false;
+        }
+        return true;
+    }
+
+    // The body is parsed as it arrives; a declared length over the limit is refused before any of it is read.
+    private static JsonReader bodyReader(HttpExchange exchange) throws IOException {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length != null && length.matches("\\d{1,18}") && Long.parseLong(length) > MAX_BODY_BYTES) {
+            throw new JsonReader.TooLargeException(MAX_BODY_BYTES);
+        }
+        return new JsonReader(exchange.getRequestBody(), MAX_BODY_BYTES, MAX_BODY_DEPTH);
+    }
+
+    private static String clientId(HttpExchange exchange) {
+        if (TRUST_FORWARDED_FOR) {
+            String forwarded = exchange.getRequestHeaders().getFirst("X-Forwarded-For");
+            if (forwarded != null && !forwarded.isBlank()) {
+                return forwarded.split(",", 2)[0].trim();
+            }
+        }
+        return exchange.getRemoteAddress().getAddress().getHostAddress();
+    }
+
+    private static void setCorsHeaders(Headers headers) {
+        headers.set("Access-Control-Allow-Origin", "*");
+        headers.set("Access-Control-Allow-Methods", "POST, OPTIONS");
+        headers.set("Access-Control-Allow-Headers", "Content-Type");
+        headers.set("Access-Control-Expose-Headers", "Retry-After");
+    }
+
+    private static void sendError(HttpExchange exchange, Exception ex) throws IOException {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("error", ex.getMessage());
+        sendJson(exchange, ex instanceof JsonReader.TooLargeException ? 413 : 400, error);
+    }
+
+    private static void sendRejected(HttpExchange exchange, AdmissionController.RejectedException ex) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(ex.retryAfterSeconds));
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("error", ex.getMessage());
+        sendJson(exchange, 429, error);
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, Map<String, Object> payload) throws IOException {
+        writeCommitted(startJson(exchange, status), payload);
+    }
+
+    private static OutputStream startJson(HttpExchange exchange, int status) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", "application/json");
+        setCorsHeaders(headers);
+        return startBody(exchange, status);
+    }
+
+    // Finishes a JSON reply whose status and headers are already sent.
+    private static void writeCommitted(OutputStream body, Map<String, Object> payload) throws IOException {
+        try (JsonWriter writer = new JsonWriter(body)) {
+            writer.value(payload);
+        }
+    }
+
+    // A failure after a 200 was committed: the status cannot change, so the body carries the error as a 400 would.
+    private static void writeCommittedError(OutputStream body, Exception ex) {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("error", errorMessage(ex));
+        try {
+            writeCommitted(body, error);
+        } catch (IOException ignored) {
+            // The client has gone.
+        }
+    }
+
+    // A trace in the binary form when the client asks for it, otherwise as JSON.
+    private static void sendTrace(HttpExchange exchange, Map<String, Object> trace) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Vary", "Accept");
+        if (!BinaryTrace.accepted(exchange.getRequestHeaders().getFirst("Accept"))) {
+            sendJson(exchange, 200, trace);
+            return;
+        }
+        headers.set("Content-Type", BinaryTrace.MEDIA_TYPE);
+        setCorsHeaders(headers);
+        try (JsonWriter writer = new JsonWriter(new BinaryTrace.Encoder(startBody(exchange, 200)))) {
+            writer.value(trace);
+        }
+    }
+
+    // Sends the status line and headers and returns the body, compressed when the client accepts gzip or deflate.
+    private static OutputStream startBody(HttpExchange exchange, int status) throws IOException {
+        String encoding = Compression.negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Vary", "Accept-Encoding");
+        if (encoding != null) {
+            headers.set("Content-Encoding", encoding);
+        }
+        exchange.sendResponseHeaders(status, 0);
+        return encoding != null ? new Compression.Output(exchange.getResponseBody(), encoding) : exchange.getResponseBody();
+    }
+
+    /**
+     * Writes a space to a committed JSON reply every {@code request.probeMillis} while its work runs. The
+     * server only learns that a client has gone when a write fails, so a failed probe cancels the request's
+     * token and its compile and debuggees stop instead of running to the deadline. JSON allows leading
+     * whitespace, so the reply is unchanged for a client that stays.
+     */
+    private static final class DisconnectProbe {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final Thread thread;
+
+        DisconnectProbe(OutputStream body, CancellationToken token) {
+            thread = Thread.ofVirtual().name("disconnect-probe").start(() -> {
+                try {
+                    while (!done.await(PROBE_MILLIS, TimeUnit.MILLISECONDS) && !token.isCancelled()) {
+                        body.write(' ');
+                        body.flush();
+                    }
+                } catch (IOException ex) {
+                    token.cancel("Client disconnected");
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+
+        // Waits out a probe in progress, since the reply is written to the same stream next.
+        void stop() {
+            done.countDown();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static String errorMessage(Throwable error) {
+        Throwable current = error;
+        while ((current instanceof ExecutionException || current instanceof RuntimeException) && current.getCause() != null) {
+            current = current.getCause();
+        }
+        if (current instanceof TimeoutException) {
+            return "Trace timed out";
+        }
+        return current.getMessage() != null ? current.getMessage() : current.toString();
+    }
+
+    private static int intValue(Object value, int fallback) {
+        return value instanceof Number ? ((Number) value).intValue() : fallback;
+    }
+
+    private static final class RunPayload {
+        final String code;
+        final String language;
+        final String title;
+        final List<InputSpec> cases;
+        final boolean delta;
+        final int keyframeInterval;
+        final Sampling sampling;
+        final TraceEngine engine;
+
+        private RunPayload(String code, String language, String title, List<InputSpec> cases, boolean delta, int keyframeInterval,
+                Sampling sampling, TraceEngine engine) {
+            this.code = code;
+            this.language = language;
+            this.title = title;
+            this.cases = cases;
+            this.delta = delta;
+            this.keyframeInterval = keyframeInterval;
+            this.sampling = sampling;
+            this.engine = engine;
+        }
+
+        static RunPayload parse(RunRequest request) {
+            String code = request.code;
+            if (code == null || code.isBlank()) {
+                throw new IllegalArgumentException("Code is required");
+            }
+            String language = request.language != null ? request.language : "Java";
+            List<InputSpec> cases = new ArrayList<>();
+            for (RunRequest.Input input : request.inputs) {
+                String id = input.id != null ? input.id : "input-" + (cases.size() + 1);
+                String label = input.label != null ? input.label : "Input " + (cases.size() + 1);
+                cases.add(new InputSpec(id, label, input.value));
+            }
+            boolean delta = "delta".equalsIgnoreCase(request.traceFormat);
+            int keyframeInterval = Math.max(1, intValue(request.keyframeInterval, TraceDelta.DEFAULT_KEYFRAME_INTERVAL));
+            Sampling sampling = Sampling.parse(request.sampling);
+            TraceEngine engine = TraceEngines.parse(request.engine);
+            TraceEngines.check(engine, sampling, delta);
+            String title = request.title != null ? request.title : "Java Visualizer";
+            return new RunPayload(code, language, title, cases, delta, keyframeInterval, sampling, engine);
+        }
+
+        String cacheKey(int index) {
+            return TraceCache.key(code, cases.get(index).value, delta ? keyframeInterval : 0, sampling, engine.name());
+        }
+
+        TraceCache.Cached[] cachedTraces() {
+            TraceCache.Cached[] cached = new TraceCache.Cached[cases.size()];
+            if (TraceCache.SHARED.enabled()) {
+                for (int i = 0; i < cached.length; i++) {
+                    cached[i] = TraceCache.SHARED.get(cacheKey(i));
+                }
             }
+            return cached;
+        }
+
+        boolean needsTracing(TraceCache.Cached[] cached) {
+            for (TraceCache.Cached entry : cached) {
+                if (entry == null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int trace(JavaTracer.Program program, int index, CancellationToken token, TraceEngine.StepSink sink) throws Exception {
+            return TraceEngines.trace(engine, program, index, cases.get(index).value, sampling, token, sink);
+        }
+
+        JavaTracer.Program prepare(CancellationToken token) throws IOException {
+            return JavaTracer.prepare(code, inputValues(), token);
+        }
+
+        // Only JDI traces can be paged: /heap replays with the JDI engine, and other engines number refs and steps differently.
+        // Programs that may not replay the same way get no snapshot, rather than pages from a different execution.
+        String snapshot() {
+            if (engine != JavaTracer.ENGINE || !HeapSnapshots.SHARED.enabled() || !HeapSnapshots.replayable(code)) {
+                return null;
+            }
+            return HeapSnapshots.SHARED.put(code, inputValues(), sampling);
+        }
+
+        private List<String> inputValues() {
+            List<String> values = new ArrayList<>();
+            for (InputSpec inputCase : cases) {
+                values.add(inputCase.value);
+            }
+            return values;
+        }
+    }
+
+    private static final class InputSpec {
+        final String id;
+        final String label;
+        final String value;
+
+        InputSpec(String id, String label, String value) {
+            this.id = id;
+            this.label = label;
+            this.value = value;
         }
     }
 }
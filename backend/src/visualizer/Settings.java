@@ -0,0 +1,51 @@
+package visualizer;
+
+import java.util.Locale;
+
+final class Settings {
+    private Settings() {
+    }
+
+    static String stringValue(String key, String fallback) {
+        String value = optionalValue(key, fallback);
+        return value == null || value.isEmpty() ? fallback : value;
+    }
+
+    // Unlike stringValue, an empty value is kept, for settings where empty turns a feature off.
+    static String optionalValue(String key, String fallback) {
+        String value = System.getProperty("visualizer." + key);
+        if (value == null) {
+            value = System.getenv("VISUALIZER_" + key.toUpperCase(Locale.ROOT).replace('.', '_'));
+        }
+        return value == null ? fallback : value.trim();
+    }
+
+    static int intValue(String key, int fallback) {
+        String value = stringValue(key, null);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            return fallback;
+        }
+    }
+
+    static long longValue(String key, long fallback) {
+        String value = stringValue(key, null);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            return fallback;
+        }
+    }
+
+    static boolean booleanValue(String key, boolean fallback) {
+        String value = stringValue(key, null);
+        return value == null ? fallback : Boolean.parseBoolean(value);
+    }
+}
@@ -1,306 +0,0 @@
-package visualizer;
-
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
-public final class SimpleJson {
-    private SimpleJson() {
-    }
-
-    public static Object parse(String json) {
-        if (json == null) {
-            throw new IllegalArgumentException("JSON input is null");
-        }
-        Parser parser = new Parser(json);
-        Object value = parser.parseValue();
-        parser.skipWhitespace();
-        if (!parser.isAtEnd()) {
-            throw new IllegalArgumentException("Unexpected trailing content");
-        }
-        return value;
-    }
-
-    public static String stringify(Object value) {
-        StringBuilder builder = new StringBuilder();
-        writeValue(builder, value);
-        return builder.toString();
-    }
-
-    @SuppressWarnings("unchecked")
-    private static void writeValue(StringBuilder builder, Object value) {
-        if (value == null) {
-            builder.append("null");
-        } else if (value instanceof String) {
-            builder.append('"').append(escape((String) value)).append('"');
-        } else if (value instanceof Number || value instanceof Boolean) {
-            builder.append(value.toString());
-        } else if (value instanceof Map) {
-            Map<String, Object> map = (Map<String, Object>) value;
-            builder.append('{');
-            boolean first = true;
-            for (Map.Entry<String, Object> entry : map.entrySet()) {
-                if (!first) {
-                    builder.append(',');
-                }
-                first = false;
-                builder.append('"').append(escape(entry.getKey())).append('"').append(':');
-                writeValue(builder, entry.getValue());
-            }
-            builder.append('}');
-        } else if (value instanceof List) {
-            List<Object> list = (List<Object>) value;
-            builder.append('[');
-            for (int i = 0; i < list.size(); i++) {
-                if (i > 0) {
-                    builder.append(',');
-                }
-                writeValue(builder, list.get(i));
-            }
-            builder.append(']');
-        } else {
-            builder.append('"').append(escape(value.toString())).append('"');
-        }
-    }
-
-    private static String escape(String value) {
-        StringBuilder builder = new StringBuilder();
-        for (int i = 0; i < value.length(); i++) {
-            char ch = value.charAt(i);
-            switch (ch) {
-                case '"':
-                    builder.append("\\\"");
-                    break;
-                case '\\':
-                    builder.append("\\\\");
-                    break;
-                case '\n':
-                    builder.append("\\n");
-                    break;
-                case '\r':
-                    builder.append("\\r");
-                    break;
-                case '\t':
-                    builder.append("\\t");
-                    break;
-                default:
-                    if (ch < 32) {
-                        builder.append(String.format("\\u%04x", (int) ch));
-                    } else {
-                        builder.append(ch);
-                    }
-                    break;
-            }
-        }
-        return builder.toString();
-    }
-
-    private static final class Parser {
-        private final String input;
-        private int index;
-
-        private Parser(String input) {
-            this.input = input;
-        }
-
-        private Object parseValue() {
-            skipWhitespace();
-            if (isAtEnd()) {
-                throw new IllegalArgumentException("Unexpected end of JSON");
-            }
-            char ch = input.charAt(index);
-            if (ch == '"') {
-                return parseString();
-            }
-            if (ch == '{') {
-                return parseObject();
-            }
-            if (ch == '[') {
-                return parseArray();
-            }
-            if (ch == 't' || ch == 'f') {
-                return parseBoolean();
-            }
-            if (ch == 'n') {
-                return parseNull();
-            }
-            return parseNumber();
-        }
-
-        private Map<String, Object> parseObject() {
-            Map<String, Object> map = new HashMap<>();
-            index++;
-            skipWhitespace();
-            if (peek('}')) {
-                index++;
-                return map;
-            }
-            while (true) {
-                skipWhitespace();
-                String key = parseString();
-                skipWhitespace();
-                expect(':');
-                Object value = parseValue();
-                map.put(key, value);
-                skipWhitespace();
-                if (peek('}')) {
-                    index++;
-                    break;
-                }
-                expect(',');
-            }
-            return map;
-        }
-
-        private List<Object> parseArray() {
-            List<Object> list = new ArrayList<>();
-            index++;
-            skipWhitespace();
-            if (peek(']')) {
-                index++;
-                return list;
-            }
-            while (true) {
-                Object value = parseValue();
-                list.add(value);
-                skipWhitespace();
-                if (peek(']')) {
-                    index++;
-                    break;
-                }
-                expect(',');
-            }
-            return list;
-        }
-
-        private String parseString() {
-            expect('"');
-            StringBuilder builder = new StringBuilder();
-            while (!isAtEnd()) {
-                char ch = input.charAt(index++);
-                if (ch == '"') {
-                    return builder.toString();
-                }
-                if (ch == '\\') {
-                    if (isAtEnd()) {
-                        throw new IllegalArgumentException("Invalid escape sequence");
-                    }
-                    char escaped = input.charAt(index++);
-                    switch (escaped) {
-                        case '"':
-                        case '\\':
-                        case '/':
-                            builder.append(escaped);
-                            break;
-                        case 'b':
-                            builder.append('\b');
-                            break;
-                        case 'f':
-                            builder.append('\f');
-                            break;
-                        case 'n':
-                            builder.append('\n');
-                            break;
-                        case 'r':
-                            builder.append('\r');
-                            break;
-                        case 't':
-                            builder.append('\t');
-                            break;
-                        case 'u':
-                            if (index + 4 > input.length()) {
-                                throw new IllegalArgumentException("Invalid unicode escape");
-                            }
-                            String hex = input.substring(index, index + 4);
-                            builder.append((char) Integer.parseInt(hex, 16));
-                            index += 4;
-                            break;
-                        default:
-                            throw new IllegalArgumentException("Invalid escape character: " + escaped);
-                    }
-                } else {
-                    builder.append(ch);
-                }
-            }
-            throw new IllegalArgumentException("Unterminated string");
-        }
-
-        private Number parseNumber() {
-            int start = index;
-            if (peek('-')) {
-                index++;
-            }
-            while (!isAtEnd() && Character.isDigit(input.charAt(index))) {
-                index++;
-            }
-            if (!isAtEnd() && input.charAt(index) == '.') {
-                index++;
-                while (!isAtEnd() && Character.isDigit(input.charAt(index))) {
-                    index++;
-                }
-            }
-            if (!isAtEnd() && (input.charAt(index) == 'e' || input.charAt(index) == 'E')) {
-                index++;
-                if (!isAtEnd() && (input.charAt(index) == '+' || input.charAt(index) == '-')) {
-                    index++;
-                }
-                while (!isAtEnd() && Character.isDigit(input.charAt(index))) {
-                    index++;
-                }
-            }
-            String number = input.substring(start, index);
-            if (number.contains(".") || number.contains("e") || number.contains("E")) {
-                return Double.parseDouble(number);
-            }
-            return Long.parseLong(number);
-        }
-
-        private Boolean parseBoolean() {
-            if (input.startsWith("true", index)) {
-                index += 4;
-                return Boolean.TRUE;
-            }
-            if (input.startsWith("false", index)) {
-                index += 5;
-                return Boolean.FALSE;
-            }
-            throw new IllegalArgumentException("Invalid boolean value");
-        }
-
-        private Object parseNull() {
-            if (!input.startsWith("null", index)) {
-                throw new IllegalArgumentException("Invalid null value");
-            }
-            index += 4;
-            return null;
-        }
-
-        private void skipWhitespace() {
-            while (!isAtEnd()) {
-                char ch = input.charAt(index);
-                if (ch == ' ' || ch == '\n' || ch == '\r' || ch == '\t') {
-                    index++;
-                } else {
-                    break;
-                }
-            }
-        }
-
-        private void expect(char expected) {
-            skipWhitespace();
-            if (isAtEnd() || input.charAt(index) != expected) {
-                throw new IllegalArgumentException("Expected '" + expected + "' at position " + index);
-            }
-            index++;
-        }
-
-        private boolean peek(char expected) {
-            return !isAtEnd() && input.charAt(index) == expected;
-        }
-
-        private boolean isAtEnd() {
-            return index >= input.length();
-        }
-    }
-}
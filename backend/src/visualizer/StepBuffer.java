@@ -0,0 +1,157 @@
+package visualizer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One trace's steps, encoded to JSON as they are captured and appended to direct (off-heap) memory. The
+ * steps themselves become garbage as soon as they are written, so a long trace costs the server heap
+ * one step rather than all of them. Chunks come from a small shared pool and go back to it on close; a
+ * step never spans two chunks, so it can be written out as one raw value. A trace that is not cached is
+ * written from the chunks; a cached one is copied out of them once, by {@link #toEntry}.
+ */
+final class StepBuffer implements TraceCache.Cached, AutoCloseable {
+    static final int CHUNK_BYTES = 256 * 1024;
+    private static final int POOL_CHUNKS = Math.max(0, Settings.intValue("traceBuffer.poolChunks", 64));
+    private static final ArrayDeque<ByteBuffer> POOL = new ArrayDeque<>();
+    // Per step: chunk index, start and end offset.
+    private static final int BOUND_INTS = 3;
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private final JsonWriter writer = new JsonWriter(new ChunkOutput());
+    private int[] bounds = new int[BOUND_INTS * 256];
+    private ByteBuffer current;
+    private int stepStart;
+    private int steps;
+    private long bytes;
+
+    void append(Object step) throws IOException {
+        stepStart = current != null ? current.position() : 0;
+        writer.value(step).flush();
+        if (bounds.length < (steps + 1) * BOUND_INTS) {
+            bounds = Arrays.copyOf(bounds, bounds.length * 2);
+        }
+        int at = steps * BOUND_INTS;
+        bounds[at] = chunks.size() - 1;
+        bounds[at + 1] = stepStart;
+        bounds[at + 2] = current.position();
+        bytes += current.position() - stepStart;
+        steps++;
+    }
+
+    @Override
+    public int steps() {
+        return steps;
+    }
+
+    @Override
+    public JsonWriter.Writable step(int index) {
+        ByteBuffer json = slice(index);
+        return writer -> writer.rawValue(json);
+    }
+
+    @Override
+    public void writeJson(JsonWriter writer) throws IOException {
+        writer.beginArray();
+        for (int i = 0; i < steps; i++) {
+            writer.rawValue(slice(i));
+        }
+        writer.endArray();
+    }
+
+    /** The trace as a cache entry: copied into direct memory of exactly its size, and deflated. */
+    TraceCache.Entry toEntry() {
+        ByteBuffer json = allocate((int) (bytes + Math.max(steps, 1) + 1));
+        IntBuffer stepBounds = IntBuffer.allocate(2 * steps);
+        json.put((byte) '[');
+        for (int i = 0; i < steps; i++) {
+            if (i > 0) {
+                json.put((byte) ',');
+            }
+            stepBounds.put(json.position());
+            json.put(slice(i));
+            stepBounds.put(json.position());
+        }
+        json.put((byte) ']');
+        json.flip();
+        return new TraceCache.Entry(json, stepBounds.flip(), Compression.deflate(json));
+    }
+
+    /**
+     * Direct memory for data that outlives the request, such as cache entries. Each buffer is allocated on
+     * its own, never sliced from a shared one, so evicting an entry frees exactly the bytes the cache
+     * counted for it.
+     */
+    static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    @Override
+    public void close() {
+        synchronized (POOL) {
+            for (ByteBuffer chunk : chunks) {
+                if (chunk.capacity() == CHUNK_BYTES && POOL.size() < POOL_CHUNKS) {
+                    POOL.push(chunk);
+                }
+            }
+        }
+        chunks.clear();
+        current = null;
+    }
+
+    private ByteBuffer slice(int index) {
+        int at = index * BOUND_INTS;
+        int start = bounds[at + 1];
+        return chunks.get(bounds[at]).slice(start, bounds[at + 2] - start);
+    }
+
+    // Starts a chunk with room for the step written so far plus needed bytes, moving the partial step over.
+    private void nextChunk(int needed) {
+        int partial = current != null ? current.position() - stepStart : 0;
+        ByteBuffer next = chunk(partial + needed);
+        if (partial > 0) {
+            next.put(current.slice(stepStart, partial));
+            current.position(stepStart);
+        }
+        chunks.add(next);
+        current = next;
+        stepStart = 0;
+    }
+
+    private static ByteBuffer chunk(int needed) {
+        if (needed > CHUNK_BYTES) {
+            return ByteBuffer.allocateDirect(needed);
+        }
+        synchronized (POOL) {
+            ByteBuffer pooled = POOL.poll();
+            if (pooled != null) {
+                return pooled.clear();
+            }
+        }
+        return ByteBuffer.allocateDirect(CHUNK_BYTES);
+    }
+
+    private final class ChunkOutput extends OutputStream {
+        @Override
+        public void write(int value) {
+            if (current == null || !current.hasRemaining()) {
+                nextChunk(1);
+            }
+            current.put((byte) value);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) {
+            if (current == null || current.remaining() < length) {
+                nextChunk(length);
+            }
+            current.put(data, offset, length);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package visualizer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recently produced traces, keyed by code and input and kept as the JSON bytes that were sent, so a
+ * repeated run is answered without compiling, tracing or serializing anything. The bytes are held in
+ * direct buffers and count against the direct memory limit rather than the heap.
+ */
+final class TraceCache {
+    static final TraceCache SHARED = new TraceCache(
+            Settings.longValue("traceCache.maxBytes", 64L * 1024 * 1024),
+            Settings.longValue("traceCache.ttlSeconds", 600) * 1000,
+            TraceStore.SHARED);
+
+    // Part of every key. Bump it when the JSON of a trace changes, such as how ref ids are numbered, so that
+    // traces the store kept from an older version are not served.
+    private static final String FORMAT = "3";
+
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final TraceStore store;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    TraceCache(long maxBytes, long ttlMillis, TraceStore store) {
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.store = store;
+    }
+
+    // keyframeInterval is 0 for full traces; delta traces with different spacing are different bytes. The step
+    // limit is part of the key so that raising it does not serve traces cut short under the old one.
+    static String key(String code, String input, int keyframeInterval, Sampling sampling, String engine) {
+        return Digests.sha256(FORMAT, normalize(code), input, String.valueOf(keyframeInterval), sampling.key(), engine,
+                String.valueOf(JavaTracer.MAX_STEPS));
+    }
+
+    // Only trailing whitespace goes; leading blank lines move every line number.
+    private static String normalize(String code) {
+        String[] lines = code.replace("\r\n", "\n").replace('\r', '\n').split("\n", -1);
+        StringBuilder normalized = new StringBuilder(code.length());
+        for (String line : lines) {
+            normalized.append(line.stripTrailing()).append('\n');
+        }
+        return normalized.toString().stripTrailing();
+    }
+
+    boolean enabled() {
+        return memoryEnabled() || store != null;
+    }
+
+    private boolean memoryEnabled() {
+        return maxBytes > 0 && ttlMillis > 0;
+    }
+
+    // Memory first, then the on-disk store; store hits are served from its mapping, not copied back here.
+    Cached get(String key) {
+        Entry entry = getInMemory(key);
+        if (entry != null || store == null) {
+            return entry;
+        }
+        return store.get(key);
+    }
+
+    void put(String key, Entry entry) {
+        putInMemory(key, entry);
+        if (store != null) {
+            store.append(key, entry);
+        }
+    }
+
+    private synchronized Entry getInMemory(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.createdAt > ttlMillis) {
+            entries.remove(key);
+            totalBytes -= entry.size();
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    private synchronized void putInMemory(String key, Entry entry) {
+        if (!memoryEnabled() || entry.size() > maxBytes) {
+            return;
+        }
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            totalBytes -= previous.size();
+        }
+        totalBytes += entry.size();
+        evict();
+    }
+
+    synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", entries.size());
+        stats.put("bytes", totalBytes);
+        stats.put("maxBytes", maxBytes);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        if (store != null) {
+            stats.put("store", store.stats());
+        }
+        return stats;
+    }
+
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (totalBytes <= maxBytes && now - entry.createdAt <= ttlMillis) {
+                // Least recently used first; stop at the first entry we are allowed to keep.
+                break;
+            }
+            totalBytes -= entry.size();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    static Entry serialize(List<?> trace) throws IOException {
+        try (StepBuffer steps = new StepBuffer()) {
+            for (Object step : trace) {
+                steps.append(step);
+            }
+            return steps.toEntry();
+        }
+    }
+
+    interface Cached extends JsonWriter.Writable {
+        int steps();
+
+        JsonWriter.Writable step(int index);
+    }
+
+    static final class Entry implements Cached {
+        final ByteBuffer json;
+        private final IntBuffer stepBounds;
+        // The JSON as spliceable deflate data, or null.
+        final ByteBuffer deflated;
+        final long createdAt = System.currentTimeMillis();
+
+        Entry(ByteBuffer json, IntBuffer stepBounds, ByteBuffer deflated) {
+            this.json = json;
+            this.stepBounds = stepBounds;
+            this.deflated = deflated;
+        }
+
+        int size() {
+            return json.capacity() + (deflated != null ? deflated.capacity() : 0);
+        }
+
+        @Override
+        public int steps() {
+            return stepBounds.capacity() / 2;
+        }
+
+        int stepBound(int index) {
+            return stepBounds.get(index);
+        }
+
+        // One step's bytes, for replaying a cached trace as stream events.
+        @Override
+        public JsonWriter.Writable step(int index) {
+            int start = stepBounds.get(index * 2);
+            int end = stepBounds.get(index * 2 + 1);
+            return writer -> writer.rawValue(json.slice(start, end - start));
+        }
+
+        @Override
+        public void writeJson(JsonWriter writer) throws IOException {
+            writer.rawValue(json.duplicate(), deflated != null ? deflated.duplicate() : null);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package visualizer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+final class TraceDelta {
+    static final int DEFAULT_KEYFRAME_INTERVAL = Math.max(1, Settings.intValue("trace.keyframeInterval", 50));
+
+    private final int keyframeInterval;
+    private TraceModels.Step previous;
+    private Map<String, TraceModels.HeapObject> previousHeap;
+    private int index;
+
+    TraceDelta(int keyframeInterval) {
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+    }
+
+    static List<Object> encode(List<TraceModels.Step> trace, int keyframeInterval) {
+        TraceDelta encoder = new TraceDelta(keyframeInterval);
+        List<Object> encoded = new ArrayList<>(trace.size());
+        for (TraceModels.Step step : trace) {
+            encoded.add(encoder.next(step));
+        }
+        return encoded;
+    }
+
+    // Keyframes are the full typed step; delta steps stay small maps of what changed.
+    Object next(TraceModels.Step step) {
+        Map<String, TraceModels.HeapObject> heapByRef = indexHeap(step.heap);
+
+        Object encoded;
+        if (index % keyframeInterval == 0) {
+            encoded = step.asKeyframe();
+        } else {
+            Map<String, Object> delta = new LinkedHashMap<>();
+            delta.put("line", step.line);
+            diffLocals(step, delta);
+            diffHeap(step.heap, heapByRef, delta);
+            if (!Objects.equals(step.focus, previous.focus)) {
+                delta.put("focus", step.focus);
+            }
+            encoded = delta;
+        }
+        previous = step;
+        previousHeap = heapByRef;
+        index++;
+        return encoded;
+    }
+
+    private void diffLocals(TraceModels.Step step, Map<String, Object> encoded) {
+        Map<String, Object> changed = new LinkedHashMap<>();
+        for (int i = 0; i < step.localNames.length; i++) {
+            int before = previous.localIndex(step.localNames[i]);
+            if (before < 0 || !Objects.equals(previous.localValues[before], step.localValues[i])) {
+                changed.put(step.localNames[i], step.localValues[i]);
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        for (String name : previous.localNames) {
+            if (step.localIndex(name) < 0) {
+                removed.add(name);
+            }
+        }
+        if (!changed.isEmpty()) {
+            encoded.put("locals", changed);
+        }
+        if (!removed.isEmpty()) {
+            encoded.put("removedLocals", removed);
+        }
+        if (!sameOrder(previous, step, removed)) {
+            encoded.put("localOrder", List.of(step.localNames));
+        }
+    }
+
+    private void diffHeap(List<TraceModels.HeapObject> heap, Map<String, TraceModels.HeapObject> heapByRef, Map<String, Object> encoded) {
+        List<TraceModels.HeapObject> set = new ArrayList<>();
+        Map<String, Object> cells = new LinkedHashMap<>();
+        Map<String, Object> fields = new LinkedHashMap<>();
+        List<String> expectedOrder = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (String ref : previousHeap.keySet()) {
+            if (heapByRef.containsKey(ref)) {
+                expectedOrder.add(ref);
+            } else {
+                removed.add(ref);
+            }
+        }
+
+        for (TraceModels.HeapObject object : heap) {
+            TraceModels.HeapObject before = previousHeap.get(object.ref);
+            if (before == null) {
+                set.add(object);
+                expectedOrder.add(object.ref);
+            } else if (before.equals(object)) {
+                continue;
+            } else if (before instanceof TraceModels.HeapArray && object instanceof TraceModels.HeapArray
+                    && ((TraceModels.HeapArray) before).sameShape((TraceModels.HeapArray) object)) {
+                cells.put(object.ref, diffCells((TraceModels.HeapArray) before, (TraceModels.HeapArray) object));
+            } else if (before instanceof TraceModels.HeapNode && object instanceof TraceModels.HeapNode) {
+                fields.put(object.ref, diffFields((TraceModels.HeapNode) before, (TraceModels.HeapNode) object));
+            } else {
+                set.add(object);
+            }
+        }
+
+        if (!set.isEmpty()) {
+            encoded.put("heapSet", set);
+        }
+        if (!cells.isEmpty()) {
+            encoded.put("cells", cells);
+        }
+        if (!fields.isEmpty()) {
+            encoded.put("fields", fields);
+        }
+        if (!removed.isEmpty()) {
+            encoded.put("heapRemoved", removed);
+        }
+        List<String> order = new ArrayList<>(heapByRef.keySet());
+        if (!order.equals(expectedOrder)) {
+            encoded.put("heapOrder", order);
+        }
+    }
+
+    private static List<Object> diffCells(TraceModels.HeapArray before, TraceModels.HeapArray after) {
+        List<Object> changes = new ArrayList<>();
+        for (int i = 0; i < after.length; i++) {
+            if (!after.sameItem(before, i)) {
+                changes.add(i);
+                changes.add(after.item(i));
+            }
+        }
+        return changes;
+    }
+
+    private static Map<String, Object> diffFields(TraceModels.HeapNode before, TraceModels.HeapNode after) {
+        Map<String, Object> changes = new LinkedHashMap<>();
+        for (String field : TraceModels.HeapNode.FIELDS) {
+            Object newValue = after.field(field);
+            if (!Objects.equals(before.field(field), newValue)) {
+                changes.put(field, newValue);
+            }
+        }
+        return changes;
+    }
+
+    private static boolean sameOrder(TraceModels.Step before, TraceModels.Step after, List<String> removed) {
+        List<String> expected = new ArrayList<>();
+        for (String name : before.localNames) {
+            if (!removed.contains(name)) {
+                expected.add(name);
+            }
+        }
+        for (String name : after.localNames) {
+            if (before.localIndex(name) < 0) {
+                expected.add(name);
+            }
+        }
+        return expected.equals(List.of(after.localNames));
+    }
+
+    private static Map<String, TraceModels.HeapObject> indexHeap(List<TraceModels.HeapObject> heap) {
+        Map<String, TraceModels.HeapObject> byRef = new LinkedHashMap<>();
+        for (TraceModels.HeapObject object : heap) {
+            byRef.put(object.ref, object);
+        }
+        return byRef;
+    }
+}
@@ -0,0 +1,38 @@
+package visualizer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A way of running a compiled program and capturing its steps. Engines share the compile stage
+ * ({@link JavaTracer#prepare}) and the step model, so the server can pick one per request and encode,
+ * cache and stream its steps the same way. Capabilities tell the server which request options an engine
+ * can serve; implementations are registered in {@link TraceEngines}.
+ */
+interface TraceEngine {
+    /** The value of the request's {@code engine} field. */
+    String name();
+
+    /** Whether steps reach the sink while the program runs, rather than in batches or when it ends. */
+    boolean supportsStreaming();
+
+    /** Whether the engine's steps may be delta-encoded ({@code "traceFormat": "delta"}). */
+    boolean supportsDeltas();
+
+    boolean supportsSampling(String mode);
+
+    /** Traces input {@code inputIndex} of the program, passing each step to the sink; returns the number of steps. */
+    int trace(JavaTracer.Program program, int inputIndex, String input, Sampling sampling, CancellationToken token, StepSink sink) throws Exception;
+
+    default List<TraceModels.Step> trace(JavaTracer.Program program, int inputIndex, String input, Sampling sampling, CancellationToken token)
+            throws Exception {
+        List<TraceModels.Step> trace = new ArrayList<>();
+        trace(program, inputIndex, input, sampling, token, trace::add);
+        return trace;
+    }
+
+    interface StepSink {
+        void accept(TraceModels.Step step) throws IOException;
+    }
+}
@@ -0,0 +1,131 @@
+package visualizer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The registered trace engines, the default one ({@code trace.engine}) and per-engine counters, so two
+ * engines can be compared on live traffic from {@code /stats}.
+ */
+final class TraceEngines {
+    private static final Map<String, Usage> ENGINES = new LinkedHashMap<>();
+
+    static {
+        register(JavaTracer.ENGINE);
+        register(InstrumentedTracer.ENGINE);
+    }
+
+    static final TraceEngine DEFAULT = defaultEngine(Settings.stringValue("trace.engine", JavaTracer.ENGINE.name()));
+
+    private TraceEngines() {
+    }
+
+    private static void register(TraceEngine engine) {
+        ENGINES.put(engine.name(), new Usage(engine));
+    }
+
+    private static TraceEngine defaultEngine(String name) {
+        Usage usage = ENGINES.get(name);
+        if (usage == null) {
+            System.err.println("Unknown trace.engine " + name + "; using " + JavaTracer.ENGINE.name());
+            return JavaTracer.ENGINE;
+        }
+        return usage.engine;
+    }
+
+    static List<TraceEngine> all() {
+        List<TraceEngine> engines = new ArrayList<>();
+        for (Usage usage : ENGINES.values()) {
+            engines.add(usage.engine);
+        }
+        return engines;
+    }
+
+    // The request's "engine" field; absent means the configured default.
+    static TraceEngine parse(Object raw) {
+        if (raw == null) {
+            return DEFAULT;
+        }
+        Usage usage = raw instanceof String ? ENGINES.get(raw) : null;
+        if (usage == null) {
+            throw new IllegalArgumentException("Unknown engine: " + raw);
+        }
+        return usage.engine;
+    }
+
+    /** Rejects request options the engine cannot serve. */
+    static void check(TraceEngine engine, Sampling sampling, boolean delta) {
+        if (!engine.supportsSampling(sampling.mode)) {
+            throw new IllegalArgumentException("The " + engine.name() + " engine does not support " + sampling.mode + " sampling");
+        }
+        if (delta && !engine.supportsDeltas()) {
+            throw new IllegalArgumentException("The " + engine.name() + " engine does not support delta traces");
+        }
+    }
+
+    /** Traces through {@code engine} and counts the run, its steps and its time. */
+    static int trace(TraceEngine engine, JavaTracer.Program program, int inputIndex, String input, Sampling sampling, CancellationToken token,
+            TraceEngine.StepSink sink) throws Exception {
+        program.checkCompiled(inputIndex);
+        Usage usage = ENGINES.get(engine.name());
+        long start = System.nanoTime();
+        try {
+            int steps = engine.trace(program, inputIndex, input, sampling, token, sink);
+            usage.steps.add(steps);
+            return steps;
+        } catch (Exception ex) {
+            usage.failures.increment();
+            throw ex;
+        } finally {
+            usage.traces.increment();
+            usage.nanos.add(System.nanoTime() - start);
+        }
+    }
+
+    static List<Map<String, Object>> stats() {
+        List<Map<String, Object>> stats = new ArrayList<>();
+        for (Usage usage : ENGINES.values()) {
+            stats.add(usage.describe());
+        }
+        return stats;
+    }
+
+    private static final class Usage {
+        final TraceEngine engine;
+        final LongAdder traces = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder steps = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+
+        Usage(TraceEngine engine) {
+            this.engine = engine;
+        }
+
+        Map<String, Object> describe() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("name", engine.name());
+            stats.put("default", engine == DEFAULT);
+            stats.put("streaming", engine.supportsStreaming());
+            stats.put("deltas", engine.supportsDeltas());
+            List<Object> sampling = new ArrayList<>();
+            for (String mode : Sampling.MODES) {
+                if (engine.supportsSampling(mode)) {
+                    sampling.add(mode);
+                }
+            }
+            stats.put("sampling", sampling);
+            long traceCount = traces.sum();
+            long stepCount = steps.sum();
+            long millis = nanos.sum() / 1_000_000;
+            stats.put("traces", traceCount);
+            stats.put("failures", failures.sum());
+            stats.put("steps", stepCount);
+            stats.put("avgTraceMillis", traceCount == 0 ? 0 : millis / traceCount);
+            stats.put("stepsPerSecond", millis == 0 ? 0 : stepCount * 1000 / millis);
+            return stats;
+        }
+    }
+}
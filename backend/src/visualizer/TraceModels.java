@@ -1,9 +1,12 @@
 package visualizer;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 public final class TraceModels {
     private TraceModels() {
@@ -18,7 +21,14 @@ public final class TraceModels {
         return root;
     }
 
-    public static Map<String, Object> inputCase(String id, String label, String value, List<Map<String, Object>> trace) {
+    public static Map<String, Object> deltaTraceFile(String title, String language, String code, int keyframeInterval, List<Map<String, Object>> inputs) {
+        Map<String, Object> root = traceFile(title, language, code, inputs);
+        root.put("format", "delta");
+        root.put("keyframeInterval", keyframeInterval);
+        return root;
+    }
+
+    public static Map<String, Object> inputCase(String id, String label, String value, Object trace) {
         Map<String, Object> input = new LinkedHashMap<>();
         input.put("id", id);
         input.put("label", label);
@@ -27,15 +37,67 @@ public final class TraceModels {
         return input;
     }
 
-    public static Map<String, Object> step(int line, Map<String, Object> locals, List<Map<String, Object>> heap, Map<String, Object> focus) {
-        Map<String, Object> step = new LinkedHashMap<>();
-        step.put("line", line);
-        step.put("locals", locals);
-        step.put("heap", heap);
-        if (focus != null) {
-            step.put("focus", focus);
+    public static Map<String, Object> failedInputCase(String id, String label, String value, String error) {
+        Map<String, Object> input = inputCase(id, label, value, new ArrayList<>());
+        input.put("error", error);
+        return input;
+    }
+
+    public static Map<String, Object> streamStart(String title, String language, String code, int keyframeInterval, List<Map<String, Object>> inputs) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("type", "start");
+        event.put("title", title);
+        event.put("language", language);
+        event.put("code", code);
+        event.put("format", keyframeInterval > 0 ? "delta" : "full");
+        if (keyframeInterval > 0) {
+            event.put("keyframeInterval", keyframeInterval);
         }
-        return step;
+        event.put("inputs", inputs);
+        return event;
+    }
+
+    public static Map<String, Object> streamInput(String id, String label, String value) {
+        Map<String, Object> input = new LinkedHashMap<>();
+        input.put("id", id);
+        input.put("label", label);
+        input.put("value", value);
+        return input;
+    }
+
+    public static Map<String, Object> streamStep(String inputId, int index, Object step) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("type", "step");
+        event.put("input", inputId);
+        event.put("index", index);
+        event.put("step", step);
+        return event;
+    }
+
+    public static Map<String, Object> streamDone(String inputId, int steps) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("type", "done");
+        event.put("input", inputId);
+        event.put("steps", steps);
+        return event;
+    }
+
+    public static Map<String, Object> streamError(String inputId, String error) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("type", "error");
+        event.put("input", inputId);
+        event.put("error", error);
+        return event;
+    }
+
+    public static Map<String, Object> streamEnd() {
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("type", "end");
+        return event;
+    }
+
+    public static Step step(int line, String[] localNames, Object[] localValues, List<HeapObject> heap, Map<String, Object> focus) {
+        return new Step(line, localNames, localValues, heap, focus, false);
     }
 
     public static Map<String, Object> focus(String arrayRef, Map<String, Integer> indices, List<String> refs) {
@@ -52,43 +114,34 @@ public final class TraceModels {
         return focus;
     }
 
-    public static Map<String, Object> heapArray(String ref, String name, List<Object> items) {
-        Map<String, Object> array = new LinkedHashMap<>();
-        array.put("kind", "array");
-        array.put("ref", ref);
-        if (name != null) {
-            array.put("name", name);
-        }
-        array.put("items", items);
-        return array;
+    public static HeapArray heapArray(Ref ref, String name, char component, int length) {
+        return heapArray(ref, name, component, length, length);
     }
 
-    public static Map<String, Object> heapNode(String ref, Object value, String next, String left, String right) {
-        Map<String, Object> node = new LinkedHashMap<>();
-        node.put("kind", "node");
-        node.put("ref", ref);
-        node.put("value", value);
-        if (next != null) {
-            node.put("next", next);
+    /** An array whose first {@code length} items are kept, out of {@code size}. */
+    public static HeapArray heapArray(Ref ref, String name, char component, int length, int size) {
+        switch (component) {
+            case 'I':
+            case 'J':
+            case 'S':
+            case 'B':
+                return new HeapArray(ref.id, name, HeapArray.LONG, length, size, new long[length], null, null);
+            case 'Z':
+                return new HeapArray(ref.id, name, HeapArray.BOOLEAN, length, size, new long[length], null, null);
+            case 'D':
+            case 'F':
+                return new HeapArray(ref.id, name, HeapArray.DOUBLE, length, size, null, new double[length], null);
+            default:
+                return new HeapArray(ref.id, name, HeapArray.OBJECT, length, size, null, null, new Object[length]);
         }
-        if (left != null) {
-            node.put("left", left);
-        }
-        if (right != null) {
-            node.put("right", right);
-        }
-        return node;
     }
 
-    public static Map<String, Object> heapList(String ref, String name, String head) {
-        Map<String, Object> list = new LinkedHashMap<>();
-        list.put("kind", "list");
-        list.put("ref", ref);
-        if (name != null) {
-            list.put("name", name);
-        }
-        list.put("head", head);
-        return list;
+    public static HeapNode heapNode(Ref ref, Object value, Ref next, Ref left, Ref right) {
+        return new HeapNode(ref.id, value, next != null ? next.id : null, left != null ? left.id : null, right != null ? right.id : null);
+    }
+
+    public static HeapList heapList(Ref ref, String name, Ref head) {
+        return new HeapList(ref.id, name, head.id);
     }
 
     public static Map<String, Object> heapGraph(String ref, String name, List<Map<String, Object>> nodes, List<Map<String, Object>> edges) {
@@ -103,13 +156,361 @@ public final class TraceModels {
         return graph;
     }
 
-    public static Map<String, Object> ref(String refId) {
-        Map<String, Object> ref = new LinkedHashMap<>();
-        ref.put("ref", refId);
-        return ref;
+    public static List<HeapObject> heapList() {
+        return new ArrayList<>();
     }
 
-    public static List<Map<String, Object>> heapList() {
-        return new ArrayList<>();
+    public static final class Step implements JsonWriter.Writable {
+        final int line;
+        final String[] localNames;
+        final Object[] localValues;
+        final List<HeapObject> heap;
+        final Map<String, Object> focus;
+        final boolean keyframe;
+
+        private Step(int line, String[] localNames, Object[] localValues, List<HeapObject> heap, Map<String, Object> focus, boolean keyframe) {
+            this.line = line;
+            this.localNames = localNames;
+            this.localValues = localValues;
+            this.heap = heap;
+            this.focus = focus;
+            this.keyframe = keyframe;
+        }
+
+        Step asKeyframe() {
+            return new Step(line, localNames, localValues, heap, focus, true);
+        }
+
+        int localIndex(String name) {
+            for (int i = 0; i < localNames.length; i++) {
+                if (localNames[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public void writeJson(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("line").value(line);
+            writer.name("locals").beginObject();
+            for (int i = 0; i < localNames.length; i++) {
+                writer.name(localNames[i]).value(localValues[i]);
+            }
+            writer.endObject();
+            writer.name("heap").beginArray();
+            for (int i = 0; i < heap.size(); i++) {
+                heap.get(i).writeJson(writer);
+            }
+            writer.endArray();
+            if (focus != null) {
+                writer.name("focus").value(focus);
+            }
+            if (keyframe) {
+                writer.name("keyframe").value(true);
+            }
+            writer.endObject();
+        }
+    }
+
+    public abstract static class HeapObject implements JsonWriter.Writable {
+        final String ref;
+
+        private HeapObject(String ref) {
+            this.ref = ref;
+        }
+    }
+
+    public static final class HeapArray extends HeapObject {
+        static final char LONG = 'J';
+        static final char BOOLEAN = 'Z';
+        static final char DOUBLE = 'D';
+        static final char OBJECT = 'L';
+
+        final String name;
+        final char storage;
+        final int length;
+        // The array's real length; only the first length items are captured.
+        final int size;
+        final long[] longs;
+        final double[] doubles;
+        final Object[] objects;
+
+        private HeapArray(String ref, String name, char storage, int length, int size, long[] longs, double[] doubles, Object[] objects) {
+            super(ref);
+            this.name = name;
+            this.storage = storage;
+            this.length = length;
+            this.size = size;
+            this.longs = longs;
+            this.doubles = doubles;
+            this.objects = objects;
+        }
+
+        void set(int index, Object value) {
+            switch (storage) {
+                case LONG:
+                    longs[index] = ((Number) value).longValue();
+                    break;
+                case BOOLEAN:
+                    longs[index] = Boolean.TRUE.equals(value) ? 1 : 0;
+                    break;
+                case DOUBLE:
+                    doubles[index] = ((Number) value).doubleValue();
+                    break;
+                default:
+                    objects[index] = value;
+                    break;
+            }
+        }
+
+        Object item(int index) {
+            switch (storage) {
+                case LONG:
+                    return longs[index];
+                case BOOLEAN:
+                    return longs[index] != 0;
+                case DOUBLE:
+                    return doubles[index];
+                default:
+                    return objects[index];
+            }
+        }
+
+        boolean sameItem(HeapArray other, int index) {
+            switch (storage) {
+                case LONG:
+                case BOOLEAN:
+                    return longs[index] == other.longs[index];
+                case DOUBLE:
+                    return Double.compare(doubles[index], other.doubles[index]) == 0;
+                default:
+                    return Objects.equals(objects[index], other.objects[index]);
+            }
+        }
+
+        boolean sameShape(HeapArray other) {
+            return storage == other.storage && length == other.length && size == other.size && Objects.equals(name, other.name);
+        }
+
+        @Override
+        public void writeJson(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("kind").value("array");
+            writer.name("ref").value(ref);
+            if (name != null) {
+                writer.name("name").value(name);
+            }
+            writer.name("items").beginArray();
+            for (int i = 0; i < length; i++) {
+                switch (storage) {
+                    case LONG:
+                        writer.value(longs[i]);
+                        break;
+                    case BOOLEAN:
+                        writer.value(longs[i] != 0);
+                        break;
+                    case DOUBLE:
+                        writer.value(doubles[i]);
+                        break;
+                    default:
+                        writer.value(objects[i]);
+                        break;
+                }
+            }
+            writer.endArray();
+            if (size > length) {
+                writer.name("length").value(size);
+            }
+            writer.endObject();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof HeapArray)) {
+                return false;
+            }
+            HeapArray array = (HeapArray) other;
+            if (!ref.equals(array.ref) || !sameShape(array)) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (!sameItem(array, i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return ref.hashCode();
+        }
+    }
+
+    public static final class HeapNode extends HeapObject {
+        static final String[] FIELDS = {"value", "next", "left", "right"};
+
+        final Object value;
+        final String next;
+        final String left;
+        final String right;
+
+        private HeapNode(String ref, Object value, String next, String left, String right) {
+            super(ref);
+            this.value = value;
+            this.next = next;
+            this.left = left;
+            this.right = right;
+        }
+
+        Object field(String field) {
+            switch (field) {
+                case "value":
+                    return value;
+                case "next":
+                    return next;
+                case "left":
+                    return left;
+                default:
+                    return right;
+            }
+        }
+
+        @Override
+        public void writeJson(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("kind").value("node");
+            writer.name("ref").value(ref);
+            writer.name("value").value(value);
+            if (next != null) {
+                writer.name("next").value(next);
+            }
+            if (left != null) {
+                writer.name("left").value(left);
+            }
+            if (right != null) {
+                writer.name("right").value(right);
+            }
+            writer.endObject();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof HeapNode)) {
+                return false;
+            }
+            HeapNode node = (HeapNode) other;
+            return ref.equals(node.ref) && Objects.equals(value, node.value) && Objects.equals(next, node.next)
+                    && Objects.equals(left, node.left) && Objects.equals(right, node.right);
+        }
+
+        @Override
+        public int hashCode() {
+            return ref.hashCode();
+        }
+    }
+
+    public static final class HeapList extends HeapObject {
+        final String name;
+        final String head;
+
+        private HeapList(String ref, String name, String head) {
+            super(ref);
+            this.name = name;
+            this.head = head;
+        }
+
+        @Override
+        public void writeJson(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("kind").value("list");
+            writer.name("ref").value(ref);
+            if (name != null) {
+                writer.name("name").value(name);
+            }
+            writer.name("head").value(head);
+            writer.endObject();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof HeapList)) {
+                return false;
+            }
+            HeapList list = (HeapList) other;
+            return ref.equals(list.ref) && Objects.equals(name, list.name) && Objects.equals(head, list.head);
+        }
+
+        @Override
+        public int hashCode() {
+            return ref.hashCode();
+        }
+    }
+
+    public static final class Ref implements JsonWriter.Writable {
+        final String id;
+
+        private Ref(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public void writeJson(JsonWriter writer) throws IOException {
+            writer.beginObject().name("ref").value(id).endObject();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Ref && id.equals(((Ref) other).id);
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode();
+        }
+    }
+
+    /**
+     * Ref ids for one trace. Objects are numbered in the order they are first seen, so tracing the same
+     * program again yields the same ids whatever ids the debuggee's VM hands out.
+     */
+    static final class RefTable {
+        private final Map<Long, Long> ordinals = new HashMap<>();
+        private final Map<Long, Ref> arrays = new HashMap<>();
+        private final Map<Long, Ref> objects = new HashMap<>();
+        private final Map<Long, Ref> nodes = new HashMap<>();
+        private final Map<Long, Ref> lists = new HashMap<>();
+
+        Ref array(long id) {
+            return intern(arrays, "arr-", id);
+        }
+
+        Ref object(long id) {
+            return intern(objects, "obj-", id);
+        }
+
+        Ref node(long id) {
+            return intern(nodes, "node-", id);
+        }
+
+        Ref list(long id) {
+            return intern(lists, "list-", id);
+        }
+
+        private Ref intern(Map<Long, Ref> table, String prefix, long id) {
+            Ref ref = table.get(id);
+            if (ref == null) {
+                Long ordinal = ordinals.get(id);
+                if (ordinal == null) {
+                    ordinal = (long) ordinals.size() + 1;
+                    ordinals.put(id, ordinal);
+                }
+                ref = new Ref(prefix + ordinal);
+                table.put(id, ref);
+            }
+            return ref;
+        }
     }
 }
@@ -0,0 +1,451 @@
+package visualizer;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Runtime side of the instrumented engine. Classes rewritten by {@link BytecodeInstrumenter} call
+ * {@link #line} at every new line with the visible locals; the recorder snapshots them, and the arrays
+ * and nodes they reach, into a binary record in an in-process buffer that is drained to stdout when it
+ * fills and when the program ends. {@link InstrumentedTracer} decodes the records on the server side.
+ * The traced program's own output goes to stderr so it cannot corrupt the records.
+ */
+public final class TraceRecorder {
+    static final byte STEP = 'S';
+    static final byte END = 'E';
+    static final byte LIMIT = 'X';
+    static final byte ARRAY = 'A';
+    static final byte NODE = 'N';
+    static final byte LIST = 'L';
+
+    static final byte NULL = 0;
+    static final byte LONG = 1;
+    static final byte DOUBLE = 2;
+    static final byte BOOLEAN = 3;
+    static final byte STRING = 4;
+    static final byte ARRAY_REF = 5;
+    static final byte OBJECT_REF = 6;
+
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private static final Map<String, String[]> SITES = new HashMap<>();
+    private static final Map<Class<?>, NodeFields> NODE_FIELDS = new HashMap<>();
+    private static final IdentityHashMap<Object, Long> IDS = new IdentityHashMap<>();
+    private static final IdentityHashMap<Object, Boolean> SEEN = new IdentityHashMap<>();
+    private static final Encoder RECORD = new Encoder();
+    private static final Encoder HEAP = new Encoder();
+    private static ByteBuffer buffer;
+    private static FileChannel out;
+    private static int events;
+    private static int heapCount;
+    // As in JavaTracer.captureStep; InstrumentedTracer rejects a step claiming more heap records than this.
+    private static int heapLimit;
+    private static boolean finished;
+    private static int maxThreads;
+    private static int maxSteps;
+    private static int baselineThreads;
+
+    private TraceRecorder() {
+    }
+
+    // Arguments: class directory, main class, thread cap (0 for none), step cap. Stdin is passed through to the program.
+    public static void main(String[] args) throws IOException {
+        out = new FileOutputStream(FileDescriptor.out).getChannel();
+        buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        System.setOut(System.err);
+        // A program that calls System.exit still delivers what it recorded.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                finish("");
+            } catch (IOException ignored) {
+            }
+        }));
+        maxThreads = Integer.parseInt(args[2]);
+        maxSteps = Integer.parseInt(args[3]);
+        baselineThreads = Thread.activeCount();
+        // An empty message is a clean exit, as in the JDI engine; the program's output on stderr is not an error.
+        String error = "";
+        try (URLClassLoader loader = new ProgramLoader(Path.of(args[0]).toUri().toURL())) {
+            Thread.currentThread().setContextClassLoader(loader);
+            Class<?> type = Class.forName(args[1], true, loader);
+            type.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+        } catch (InvocationTargetException ex) {
+            error = describe(ex.getCause() != null ? ex.getCause() : ex);
+        } catch (Throwable ex) {
+            error = describe(ex);
+        }
+        finish(error);
+        System.exit(0);
+    }
+
+    private static String describe(Throwable error) {
+        StringWriter writer = new StringWriter();
+        writer.append("Exception in thread \"main\" ");
+        error.printStackTrace(new PrintWriter(writer));
+        String text = writer.toString();
+        System.err.print(text);
+        return text;
+    }
+
+    private static synchronized void finish(String error) throws IOException {
+        finish(END, error);
+    }
+
+    private static void finish(byte kind, String message) throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        RECORD.reset();
+        RECORD.putByte(kind);
+        RECORD.putString(message);
+        emit(RECORD);
+        drain();
+    }
+
+    // Records what was captured so far, then stops the program.
+    private static void halt(byte kind, String message) {
+        try {
+            finish(kind, message);
+        } catch (IOException ignored) {
+        }
+        Runtime.getRuntime().halt(0);
+    }
+
+    /** Called by instrumented code; {@code names} is the comma-separated list of the locals in {@code values}. */
+    public static synchronized void line(int line, String names, Object[] values) {
+        // The JDI engine starts single-stepping at the first traced line, so that line is never captured.
+        if (events++ == 0) {
+            return;
+        }
+        if (events > maxSteps + 2) {
+            halt(END, "Trace stopped at the limit of " + maxSteps + " steps");
+        }
+        // The JDI engine counts threads through thread start events; here the check runs at every line.
+        if (maxThreads > 0 && Thread.activeCount() - baselineThreads > maxThreads) {
+            halt(LIMIT, "Program exceeded the limit of " + maxThreads + " threads");
+        }
+        String[] localNames = SITES.computeIfAbsent(names, key -> key.isEmpty() ? new String[0] : key.split(","));
+        RECORD.reset();
+        HEAP.reset();
+        SEEN.clear();
+        heapCount = 0;
+        heapLimit = JavaTracer.MAX_HEAP_OBJECTS + localNames.length;
+        RECORD.putByte(STEP);
+        RECORD.putInt(line);
+        RECORD.putInt(localNames.length);
+        for (int i = 0; i < localNames.length; i++) {
+            RECORD.putString(localNames[i]);
+            value(RECORD, values[i], localNames[i], 0);
+        }
+        RECORD.putInt(heapCount);
+        RECORD.putBytes(HEAP);
+        try {
+            emit(RECORD);
+        } catch (IOException ex) {
+            Runtime.getRuntime().halt(1);
+        }
+    }
+
+    // Mirrors JavaTracer.mapValue: arrays and node-shaped objects are added to the heap in the same order.
+    private static void value(Encoder target, Object value, String nameHint, int depth) {
+        if (value == null) {
+            target.putByte(NULL);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            target.putByte(LONG);
+            target.putLong(((Number) value).longValue());
+        } else if (value instanceof Double) {
+            target.putByte(DOUBLE);
+            target.putDouble((Double) value);
+        } else if (value instanceof Float) {
+            target.putByte(DOUBLE);
+            target.putDouble(Double.parseDouble(value.toString()));
+        } else if (value instanceof Boolean) {
+            target.putByte(BOOLEAN);
+            target.putByte((byte) ((Boolean) value ? 1 : 0));
+        } else if (value instanceof Character || value instanceof String) {
+            target.putByte(STRING);
+            target.putString(value.toString());
+        } else if (value.getClass().isArray()) {
+            array(value, nameHint);
+            target.putByte(ARRAY_REF);
+            target.putLong(id(value));
+        } else {
+            if (!SEEN.containsKey(value)) {
+                node(value, depth + 1);
+            }
+            target.putByte(OBJECT_REF);
+            target.putLong(id(value));
+        }
+    }
+
+    private static void array(Object array, String nameHint) {
+        if (SEEN.containsKey(array)) {
+            return;
+        }
+        Class<?> componentType = array.getClass().getComponentType();
+        int count = Math.min(Array.getLength(array), JavaTracer.MAX_ARRAY_ITEMS);
+        // Items first: nested arrays and nodes precede the array itself, as in the JDI engine.
+        Encoder items = new Encoder();
+        char component;
+        if (componentType == int.class) {
+            component = 'I';
+            for (int i = 0; i < count; i++) {
+                items.putLong(((int[]) array)[i]);
+            }
+        } else if (componentType == long.class) {
+            component = 'J';
+            for (int i = 0; i < count; i++) {
+                items.putLong(((long[]) array)[i]);
+            }
+        } else if (componentType == short.class) {
+            component = 'S';
+            for (int i = 0; i < count; i++) {
+                items.putLong(((short[]) array)[i]);
+            }
+        } else if (componentType == byte.class) {
+            component = 'B';
+            for (int i = 0; i < count; i++) {
+                items.putLong(((byte[]) array)[i]);
+            }
+        } else if (componentType == boolean.class) {
+            component = 'Z';
+            for (int i = 0; i < count; i++) {
+                items.putByte((byte) (((boolean[]) array)[i] ? 1 : 0));
+            }
+        } else if (componentType == double.class) {
+            component = 'D';
+            for (int i = 0; i < count; i++) {
+                items.putDouble(((double[]) array)[i]);
+            }
+        } else if (componentType == float.class) {
+            component = 'F';
+            for (int i = 0; i < count; i++) {
+                items.putDouble(Double.parseDouble(Float.toString(((float[]) array)[i])));
+            }
+        } else if (componentType == char.class) {
+            component = 'C';
+            for (int i = 0; i < count; i++) {
+                value(items, ((char[]) array)[i], null, 0);
+            }
+        } else {
+            component = componentType.isArray() ? '[' : 'L';
+            for (int i = 0; i < count; i++) {
+                value(items, ((Object[]) array)[i], null, 0);
+            }
+        }
+        if (heapCount < heapLimit) {
+            HEAP.putByte(ARRAY);
+            HEAP.putLong(id(array));
+            HEAP.putString(nameHint);
+            HEAP.putByte((byte) component);
+            HEAP.putInt(count);
+            HEAP.putInt(Array.getLength(array));
+            HEAP.putBytes(items);
+            heapCount++;
+        }
+        SEEN.put(array, Boolean.TRUE);
+    }
+
+    private static void node(Object object, int depth) {
+        if (SEEN.size() > JavaTracer.MAX_HEAP_OBJECTS || depth > JavaTracer.MAX_NODE_DEPTH) {
+            return;
+        }
+        NodeFields fields = NODE_FIELDS.computeIfAbsent(object.getClass(), NodeFields::new);
+        if (!fields.isNode()) {
+            return;
+        }
+        Encoder node = new Encoder();
+        node.putByte(NODE);
+        node.putLong(id(object));
+        if (fields.value != null) {
+            // Refs in a node's value are shown as their ids; the decoder unwraps them.
+            value(node, fields.read(fields.value, object), null, depth + 1);
+        } else {
+            node.putByte(STRING);
+            node.putString("");
+        }
+        Object next = fields.read(fields.next, object);
+        nodeRef(node, next);
+        nodeRef(node, fields.read(fields.left, object));
+        nodeRef(node, fields.read(fields.right, object));
+        if (heapCount + (next != null ? 2 : 1) > heapLimit) {
+            return;
+        }
+        if (next != null) {
+            HEAP.putByte(LIST);
+            HEAP.putLong(id(object));
+            heapCount++;
+        }
+        HEAP.putBytes(node);
+        heapCount++;
+        SEEN.put(object, Boolean.TRUE);
+    }
+
+    private static void nodeRef(Encoder target, Object value) {
+        target.putLong(value == null ? -1 : id(value));
+    }
+
+    private static long id(Object value) {
+        Long id = IDS.get(value);
+        if (id == null) {
+            id = (long) IDS.size() + 1;
+            IDS.put(value, id);
+        }
+        return id;
+    }
+
+    private static void emit(Encoder record) throws IOException {
+        ByteBuffer bytes = record.bytes();
+        if (bytes.remaining() > buffer.remaining()) {
+            drain();
+        }
+        if (bytes.remaining() > buffer.capacity()) {
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            return;
+        }
+        buffer.put(bytes);
+    }
+
+    private static void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Like the debuggee bootstrap, user code sees the platform loader; only the recorder is shared.
+    private static final class ProgramLoader extends URLClassLoader {
+        ProgramLoader(URL classDir) {
+            super(new URL[] {classDir}, ClassLoader.getPlatformClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.equals(TraceRecorder.class.getName())) {
+                return TraceRecorder.class;
+            }
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    private static final class NodeFields {
+        final Field value;
+        final Field next;
+        final Field left;
+        final Field right;
+
+        NodeFields(Class<?> type) {
+            Field valueField = find(type, "value");
+            this.value = valueField != null ? valueField : find(type, "val");
+            this.next = find(type, "next");
+            this.left = find(type, "left");
+            this.right = find(type, "right");
+        }
+
+        boolean isNode() {
+            return value != null || next != null || left != null || right != null;
+        }
+
+        // Fields of JDK classes cannot be opened; such objects are left out of the heap.
+        private static Field find(Class<?> type, String name) {
+            for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+                for (Field field : current.getDeclaredFields()) {
+                    if (field.getName().equals(name) && !Modifier.isStatic(field.getModifiers())) {
+                        return field.trySetAccessible() ? field : null;
+                    }
+                }
+            }
+            return null;
+        }
+
+        Object read(Field field, Object target) {
+            if (field == null) {
+                return null;
+            }
+            try {
+                return field.get(target);
+            } catch (IllegalAccessException ex) {
+                return null;
+            }
+        }
+    }
+
+    // A growable byte buffer for one record; records are copied into the output buffer whole.
+    private static final class Encoder {
+        private ByteBuffer bytes = ByteBuffer.allocate(256);
+
+        void reset() {
+            bytes.clear();
+        }
+
+        private void ensure(int extra) {
+            if (bytes.remaining() < extra) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(bytes.capacity() * 2, bytes.position() + extra));
+                bytes.flip();
+                larger.put(bytes);
+                bytes = larger;
+            }
+        }
+
+        void putByte(byte value) {
+            ensure(1);
+            bytes.put(value);
+        }
+
+        void putInt(int value) {
+            ensure(4);
+            bytes.putInt(value);
+        }
+
+        void putLong(long value) {
+            ensure(8);
+            bytes.putLong(value);
+        }
+
+        void putDouble(double value) {
+            ensure(8);
+            bytes.putDouble(value);
+        }
+
+        void putString(String value) {
+            if (value == null) {
+                putInt(-1);
+                return;
+            }
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            putInt(encoded.length);
+            ensure(encoded.length);
+            bytes.put(encoded);
+        }
+
+        void putBytes(Encoder other) {
+            ByteBuffer source = other.bytes();
+            ensure(source.remaining());
+            bytes.put(source);
+        }
+
+        ByteBuffer bytes() {
+            return bytes.duplicate().flip();
+        }
+    }
+}
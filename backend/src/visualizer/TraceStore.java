@@ -0,0 +1,368 @@
+package visualizer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Traces persisted across restarts in one append-only segment file. Each record holds a cache key, the
+ * step offsets, the trace JSON, its deflated copy and a CRC32 of all of that; the key-to-offset index is
+ * rebuilt by scanning the segment on startup, up to the first record that is torn or fails its checksum.
+ * Reads are slices of a read-only mapping of the segment, so cached traces are written to responses
+ * without being copied onto the heap first.
+ *
+ * <p>Appends and compaction run on one writer thread, which alone touches {@link #channel}. The monitor
+ * guards the index and the mapping, and is only held to look a key up or to publish a record or a compacted
+ * segment, so reads never wait on disk writes or fsync.
+ */
+final class TraceStore {
+    // Records of earlier versions (without a checksum) have other magics and are dropped on load; their cache
+    // keys are no longer asked for.
+    private static final int MAGIC = 0x56545233;
+    private static final String SEGMENT = "traces.seg";
+    private static final double COMPACT_TARGET = 0.5;
+    // Offsets into the mapping are ints, and the segment grows past the budget by at most one record (no
+    // larger than the budget) before it is compacted, so the budget is kept to half of that range.
+    private static final long MAX_BUDGET = Integer.MAX_VALUE / 2;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+    static final TraceStore SHARED = open(
+            Settings.optionalValue("traceStore.dir", Path.of(System.getProperty("java.io.tmpdir"), "visualizer-trace-store").toString()),
+            Settings.longValue("traceStore.maxBytes", 256L * 1024 * 1024));
+
+    private final Path segment;
+    private final long maxBytes;
+    private final Map<String, Location> index = new HashMap<>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "trace-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Writer thread only.
+    private FileChannel channel;
+    // The rest is guarded by the monitor; size is only changed by the writer thread.
+    private FileChannel readChannel;
+    private MappedByteBuffer mapped;
+    private long size;
+    private long clock;
+    private long hits;
+    private long misses;
+    private long compactions;
+
+    private TraceStore(Path segment, long maxBytes) throws IOException {
+        this.segment = segment;
+        this.maxBytes = maxBytes;
+        this.channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        load();
+        if (size > maxBytes) {
+            compact();
+        }
+    }
+
+    // An empty directory setting disables the store, as does a zero size.
+    private static TraceStore open(String dir, long maxBytes) {
+        if (dir == null || dir.isEmpty() || maxBytes <= 0) {
+            return null;
+        }
+        try {
+            Path directory = Path.of(dir);
+            createPrivate(directory);
+            return new TraceStore(directory.resolve(SEGMENT), Math.min(maxBytes, MAX_BUDGET));
+        } catch (IOException ex) {
+            System.err.println("Trace store disabled: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    // Stored traces are served back as they are and hold users' code, and the default directory is under the
+    // shared temp directory, so nobody else may read or plant files there: it is created owner-only, and an
+    // existing one must be a real directory of this user with no access for group or others. File systems
+    // without POSIX permissions are taken as they are.
+    private static void createPrivate(Path directory) throws IOException {
+        if (!directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(directory);
+            return;
+        }
+        if (Files.notExists(directory, LinkOption.NOFOLLOW_LINKS)) {
+            Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        }
+        PosixFileAttributes attributes = Files.readAttributes(directory, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        UserPrincipal user = directory.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+        if (!attributes.isDirectory() || !attributes.owner().equals(user) || !OWNER_ONLY.containsAll(attributes.permissions())) {
+            throw new IOException(directory + " must be a directory owned by " + user.getName() + " with no access for group or others");
+        }
+    }
+
+    synchronized TraceCache.Cached get(String key) {
+        Location location = index.get(key);
+        if (location == null) {
+            misses++;
+            return null;
+        }
+        try {
+            ByteBuffer view = view(location.offset, location.length);
+            hits++;
+            location.lastUsed = ++clock;
+            return new Record(view, location.steps);
+        } catch (IOException ex) {
+            misses++;
+            return null;
+        }
+    }
+
+    void append(String key, TraceCache.Entry entry) {
+        writer.execute(() -> {
+            try {
+                write(key, entry);
+            } catch (IOException ex) {
+                System.err.println("Failed to persist trace: " + ex.getMessage());
+            }
+        });
+    }
+
+    synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", index.size());
+        stats.put("bytes", size);
+        stats.put("maxBytes", maxBytes);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("compactions", compactions);
+        return stats;
+    }
+
+    // Runs on the writer thread; the monitor is taken only to check the key and to publish the record.
+    private void write(String key, TraceCache.Entry entry) throws IOException {
+        ByteBuffer deflated = entry.deflated != null ? entry.deflated.duplicate() : ByteBuffer.allocate(0);
+        long length = recordSize(key, entry.steps(), entry.json.capacity(), deflated.remaining());
+        synchronized (this) {
+            if (index.containsKey(key) || length > maxBytes) {
+                return;
+            }
+        }
+        // The header goes through the heap; the trace bytes go straight from the entry's direct buffers.
+        ByteBuffer[] record = {header(key, entry), entry.json.duplicate(), ByteBuffer.allocate(4).putInt(0, deflated.remaining()), deflated,
+                ByteBuffer.allocate(4)};
+        CRC32 checksum = new CRC32();
+        for (int i = 0; i < 4; i++) {
+            checksum.update(record[i].duplicate());
+        }
+        record[4].putInt(0, (int) checksum.getValue());
+        long offset = size;
+        channel.position(offset);
+        while (record[4].hasRemaining()) {
+            channel.write(record);
+        }
+        // Records are indexed once they are on disk; a crash before that leaves a tail that fails its checksum.
+        channel.force(false);
+        synchronized (this) {
+            size = offset + length;
+            index.put(key, new Location(offset, (int) length, entry.steps(), ++clock));
+        }
+        if (offset + length > maxBytes) {
+            compact();
+        }
+    }
+
+    private static ByteBuffer header(String key, TraceCache.Entry entry) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int steps = entry.steps();
+        ByteBuffer header = ByteBuffer.allocate(4 + 4 + keyBytes.length + 4 + 8 * steps + 4);
+        header.putInt(MAGIC).putInt(keyBytes.length).put(keyBytes).putInt(steps);
+        for (int i = 0; i < steps * 2; i++) {
+            header.putInt(entry.stepBound(i));
+        }
+        header.putInt(entry.json.capacity());
+        return header.flip();
+    }
+
+    private static long recordSize(String key, int steps, int jsonLength, int deflatedLength) {
+        return 4 + 4 + key.getBytes(StandardCharsets.UTF_8).length + 4 + 8L * steps + 4 + jsonLength + 4 + deflatedLength + 4;
+    }
+
+    // Rebuilds the index; the segment is cut off at the first torn or corrupt record (crash mid-append).
+    // A segment left larger than a mapping can be by an older version or setting is read up to that point.
+    private void load() throws IOException {
+        long fileSize = channel.size();
+        long readable = Math.min(fileSize, Integer.MAX_VALUE);
+        MappedByteBuffer buffer = readable > 0 ? channel.map(FileChannel.MapMode.READ_ONLY, 0, readable) : null;
+        long offset = 0;
+        while (buffer != null && offset < readable) {
+            int length = readRecord(buffer, (int) offset, readable);
+            if (length <= 0) {
+                break;
+            }
+            offset += length;
+        }
+        if (offset < fileSize) {
+            System.err.println("Trace store: dropping " + (fileSize - offset) + " bytes of incomplete or corrupt records");
+            channel.truncate(offset);
+        }
+        size = offset;
+    }
+
+    private int readRecord(ByteBuffer buffer, int offset, long fileSize) {
+        int magic = fileSize - offset < 12 ? 0 : buffer.getInt(offset);
+        if (magic != MAGIC) {
+            return -1;
+        }
+        int keyLength = buffer.getInt(offset + 4);
+        if (keyLength <= 0 || offset + 12L + keyLength > fileSize) {
+            return -1;
+        }
+        byte[] keyBytes = new byte[keyLength];
+        buffer.get(offset + 8, keyBytes);
+        int steps = buffer.getInt(offset + 8 + keyLength);
+        long jsonLengthAt = offset + 12L + keyLength + 8L * steps;
+        if (steps < 0 || jsonLengthAt + 4 > fileSize) {
+            return -1;
+        }
+        int jsonLength = buffer.getInt((int) jsonLengthAt);
+        long end = jsonLengthAt + 4 + jsonLength;
+        if (jsonLength < 0 || end > fileSize) {
+            return -1;
+        }
+        int deflatedLength = end + 4 <= fileSize ? buffer.getInt((int) end) : -1;
+        end += 4 + deflatedLength;
+        if (deflatedLength < 0 || end + 4 > fileSize) {
+            return -1;
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.slice(offset, (int) (end - offset)));
+        if (buffer.getInt((int) end) != (int) checksum.getValue()) {
+            return -1;
+        }
+        end += 4;
+        index.put(new String(keyBytes, StandardCharsets.UTF_8), new Location(offset, (int) (end - offset), steps, ++clock));
+        return (int) (end - offset);
+    }
+
+    private ByteBuffer view(long offset, int length) throws IOException {
+        if (mapped == null || offset + length > mapped.capacity()) {
+            // Mappings stay valid after remapping or compaction, so records handed out earlier keep working.
+            if (readChannel == null) {
+                readChannel = FileChannel.open(segment, StandardOpenOption.READ);
+            }
+            mapped = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        return mapped.slice((int) offset, length);
+    }
+
+    // Keeps the most recently used records up to half the budget, rewritten into a fresh segment. The copy is
+    // made without the monitor; only the rename and the switch to the new index hold it, so that no reader
+    // maps the new segment with offsets into the old one.
+    private void compact() throws IOException {
+        List<Map.Entry<String, Location>> live;
+        synchronized (this) {
+            live = new ArrayList<>(index.entrySet());
+            live.sort((left, right) -> Long.compare(right.getValue().lastUsed, left.getValue().lastUsed));
+        }
+        long budget = (long) (maxBytes * COMPACT_TARGET);
+        Path compacted = segment.resolveSibling(SEGMENT + ".compact");
+        Map<String, Location> kept = new HashMap<>();
+        long written = 0;
+        try (FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, Location> entry : live) {
+                Location location = entry.getValue();
+                if (written + location.length > budget) {
+                    continue;
+                }
+                long transferred = 0;
+                while (transferred < location.length) {
+                    transferred += channel.transferTo(location.offset + transferred, location.length - transferred, target);
+                }
+                kept.put(entry.getKey(), new Location(written, location.length, location.steps, location.lastUsed));
+                written += location.length;
+            }
+            target.force(true);
+        }
+        synchronized (this) {
+            Files.move(compacted, segment, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (readChannel != null) {
+                readChannel.close();
+                readChannel = null;
+            }
+            mapped = null;
+            // Reads since the snapshot still count towards which records are kept next time.
+            for (Map.Entry<String, Location> entry : kept.entrySet()) {
+                entry.getValue().lastUsed = index.get(entry.getKey()).lastUsed;
+            }
+            index.clear();
+            index.putAll(kept);
+            size = written;
+            compactions++;
+        }
+        channel.close();
+        channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static final class Location {
+        final long offset;
+        final int length;
+        final int steps;
+        long lastUsed;
+
+        Location(long offset, int length, int steps, long lastUsed) {
+            this.offset = offset;
+            this.length = length;
+            this.steps = steps;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private static final class Record implements TraceCache.Cached {
+        private final IntBuffer bounds;
+        private final ByteBuffer json;
+        private final ByteBuffer deflated;
+
+        Record(ByteBuffer record, int steps) {
+            int keyLength = record.getInt(4);
+            int boundsAt = 12 + keyLength;
+            int jsonAt = boundsAt + 8 * steps + 4;
+            int jsonLength = record.getInt(jsonAt - 4);
+            this.bounds = record.slice(boundsAt, 8 * steps).asIntBuffer();
+            this.json = record.slice(jsonAt, jsonLength);
+            int deflatedAt = jsonAt + jsonLength + 4;
+            int deflatedLength = record.getInt(deflatedAt - 4);
+            this.deflated = deflatedLength > 0 ? record.slice(deflatedAt, deflatedLength) : null;
+        }
+
+        @Override
+        public int steps() {
+            return bounds.capacity() / 2;
+        }
+
+        @Override
+        public JsonWriter.Writable step(int index) {
+            int start = bounds.get(index * 2);
+            int end = bounds.get(index * 2 + 1);
+            return writer -> writer.rawValue(json.slice(start, end - start));
+        }
+
+        @Override
+        public void writeJson(JsonWriter writer) throws IOException {
+            writer.rawValue(json.duplicate(), deflated != null ? deflated.duplicate() : null);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package visualizer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+final class TraceStream implements AutoCloseable {
+    private static final long FLUSH_INTERVAL_NANOS = 50_000_000L;
+
+    private final JsonWriter writer;
+    // A lock rather than synchronized: writers are virtual threads and this blocks on the socket.
+    private final ReentrantLock lock = new ReentrantLock();
+    private long lastFlush = System.nanoTime();
+    private IOException failure;
+
+    TraceStream(OutputStream out) {
+        this.writer = new JsonWriter(out);
+    }
+
+    void write(Map<String, Object> event, boolean flush) throws IOException {
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            writer.value(event).newline();
+            long now = System.nanoTime();
+            if (flush || now - lastFlush >= FLUSH_INTERVAL_NANOS) {
+                writer.flush();
+                lastFlush = now;
+            }
+        } catch (IOException ex) {
+            failure = ex;
+            throw ex;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            writer.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -4,7 +4,8 @@ import 'prismjs/components/prism-python'
 import 'prismjs/components/prism-java'
 import 'prismjs/themes/prism-tomorrow.css'
 import './app.css'
-import type { HeapObject, TraceFile, TraceStep } from './trace'
+import { BINARY_TRACE_TYPE, createTraceExpander, expandTraceFile, fetchHeapPage, readTraceStream } from './trace'
+import type { HeapObject, HeapPageRequest, TraceFile, TraceStep, TraceValue } from './trace'
 import baseTrace from './traces/moveZeroes.json'
 
 type InputCase = TraceFile['inputs'][number]
@@ -14,6 +15,12 @@ type TraceBundle = TraceFile & {
 }
 
 const SPEEDS = [0.5, 1, 1.5, 2]
+const PAGE_SIZE = 200
+
+// Where the current step can be paged from: the run's snapshot, the input and the step.
+type HeapSource = Omit<HeapPageRequest, 'ref' | 'offset' | 'limit'>
+
+const formatItem = (value: TraceValue) => (value !== null && typeof value === 'object' ? value.ref : String(value))
 
 const makeArrayHeap = (name: string, ref: string, items: number[]): HeapObject => ({
   kind: 'array',
@@ -200,15 +207,47 @@ function CodeEditor({
   )
 }
 
-function ArrayView({ array, focus, locals }: { array: HeapObject; focus?: TraceStep['focus']; locals?: TraceStep['locals'] }) {
+function ArrayView({
+  array,
+  focus,
+  locals,
+  source
+}: {
+  array: HeapObject
+  focus?: TraceStep['focus']
+  locals?: TraceStep['locals']
+  source?: HeapSource
+}) {
+  const [loaded, setLoaded] = useState<{ key: string; items: TraceValue[] }>({ key: '', items: [] })
+  const [loading, setLoading] = useState(false)
+  const [pageError, setPageError] = useState<string | null>(null)
   if (array.kind !== 'array') return null
   const indices = focus?.array === array.ref ? focus.indices : undefined
+
+  // Items past the captured ones are loaded per step, on request.
+  const pageKey = source ? `${source.snapshot}:${source.input}:${source.step}:${array.ref}` : ''
+  const extra = loaded.key === pageKey ? loaded.items : []
+  const items: TraceValue[] = [...array.items, ...extra]
+  const total = array.length ?? array.items.length
+  const loadMore = async () => {
+    if (!source) return
+    setLoading(true)
+    setPageError(null)
+    try {
+      const page = await fetchHeapPage(API_URL, { ...source, ref: array.ref, offset: items.length, limit: PAGE_SIZE })
+      if (page.kind === 'array') setLoaded({ key: pageKey, items: [...extra, ...page.items] })
+    } catch (err) {
+      setPageError(err instanceof Error ? err.message : 'Failed to load items')
+    } finally {
+      setLoading(false)
+    }
+  }
   
   // Find pointers (number locals that point to this index)
   const pointers: Record<number, string[]> = {}
   if (locals) {
     Object.entries(locals).forEach(([name, value]) => {
-      if (typeof value === 'number' && Number.isInteger(value) && value >= 0 && value < array.items.length) {
+      if (typeof value === 'number' && Number.isInteger(value) && value >= 0 && value < items.length) {
         // Exclude common non-pointer variable names if necessary, but generally show all valid indices
         if (!pointers[value]) pointers[value] = []
         pointers[value].push(name)
@@ -218,7 +257,7 @@ function ArrayView({ array, focus, locals }: { array: HeapObject; focus?: TraceS
 
   return (
     <div className="array">
-      {array.items.map((value, index) => {
+      {items.map((value, index) => {
         const readPos = indices?.readPos
         const writePos = indices?.writePos
         const isRead = readPos === index
@@ -229,7 +268,7 @@ function ArrayView({ array, focus, locals }: { array: HeapObject; focus?: TraceS
         
         return (
           <div key={index} className={`cell ${highlightClass}`}>
-            <span>{value}</span>
+            <span>{formatItem(value)}</span>
             {isRead && <div className="marker top">readPos</div>}
             {isWrite && <div className="marker bottom">writePos</div>}
             {localPointers.length > 0 && (
@@ -240,13 +279,35 @@ function ArrayView({ array, focus, locals }: { array: HeapObject; focus?: TraceS
           </div>
         )
       })}
+      {items.length < total &&
+        (source ? (
+          <button className="cell more" onClick={loadMore} disabled={loading} title={pageError ?? undefined}>
+            {loading ? '…' : pageError ? 'retry' : `+${Math.min(PAGE_SIZE, total - items.length)} of ${total - items.length}`}
+          </button>
+        ) : (
+          <div className="cell more">…{total - items.length}</div>
+        ))}
     </div>
   )
 }
 
-function LinkedListView({ list, nodes, focus }: { list: HeapObject; nodes: HeapObject[]; focus?: TraceStep['focus'] }) {
+function LinkedListView({
+  list,
+  nodes,
+  focus,
+  source
+}: {
+  list: HeapObject
+  nodes: HeapObject[]
+  focus?: TraceStep['focus']
+  source?: HeapSource
+}) {
+  const [loaded, setLoaded] = useState<{ key: string; nodes: HeapObject[] }>({ key: '', nodes: [] })
+  const [loading, setLoading] = useState(false)
   if (list.kind !== 'list') return null
-  const nodeMap = new Map(nodes.filter((node) => node.kind === 'node').map((node) => [node.ref, node]))
+  const pageKey = source ? `${source.snapshot}:${source.input}:${source.step}:${list.ref}` : ''
+  const paged = loaded.key === pageKey ? loaded.nodes : []
+  const nodeMap = new Map([...nodes, ...paged].filter((node) => node.kind === 'node').map((node) => [node.ref, node]))
   const order: HeapObject[] = []
   let cursor = list.head
   while (cursor && nodeMap.has(cursor) && order.length < 10) {
@@ -254,15 +315,34 @@ function LinkedListView({ list, nodes, focus }: { list: HeapObject; nodes: HeapO
     order.push(node)
     cursor = (node as any).next
   }
+  // The step only holds the nodes its locals point at; the rest of the chain is paged from the head.
+  const truncated = Boolean(cursor) && order.length < 10
+  const loadRest = async () => {
+    if (!source) return
+    setLoading(true)
+    try {
+      const page = await fetchHeapPage(API_URL, { ...source, ref: list.ref, offset: 0, limit: 10 })
+      if (page.kind === 'nodes') setLoaded({ key: pageKey, nodes: page.nodes })
+    } catch {
+      setLoaded({ key: pageKey, nodes: [] })
+    } finally {
+      setLoading(false)
+    }
+  }
 
   return (
     <div className="list">
       {order.map((node, index) => (
         <div key={node.ref} className={`list-node ${focus?.refs?.includes(node.ref) ? 'focus' : ''}`}>
           <span>{node.value}</span>
-          {index < order.length - 1 && <div className="list-arrow">→</div>}
+          {(index < order.length - 1 || truncated) && <div className="list-arrow">→</div>}
         </div>
       ))}
+      {truncated && source && (
+        <button className="list-node more" onClick={loadRest} disabled={loading}>
+          {loading ? '…' : 'more'}
+        </button>
+      )}
     </div>
   )
 }
@@ -365,6 +445,9 @@ export default function App() {
 
   const trace = currentInput.trace
   const currentStep = trace[stepIndex]
+  const heapSource: HeapSource | undefined = traceData.snapshot
+    ? { snapshot: traceData.snapshot, input: traceData.inputs.indexOf(currentInput), step: stepIndex }
+    : undefined
 
   useEffect(() => {
     setStepIndex(0)
@@ -409,7 +492,7 @@ export default function App() {
   const handleFileLoad = async (file?: File | null) => {
     if (!file) return
     const text = await file.text()
-    const parsed = JSON.parse(text) as TraceFile
+    const parsed = expandTraceFile(JSON.parse(text))
     const hydrated: TraceBundle = {
       ...parsed,
       inputs: parsed.inputs.map((input) => ({
@@ -427,24 +510,57 @@ export default function App() {
     setIsRunning(true)
     setError(null)
     try {
-      const response = await fetch(`${API_URL}/run`, {
+      const response = await fetch(`${API_URL}/run/stream`, {
         method: 'POST',
-        headers: { 'Content-Type': 'application/json' },
+        headers: { 'Content-Type': 'application/json', Accept: `${BINARY_TRACE_TYPE}, application/x-ndjson` },
         body: JSON.stringify({
           title: traceData.title,
           language,
           code,
-          inputs: draftInputs
+          inputs: draftInputs,
+          traceFormat: 'delta'
         })
       })
-      const payload = await response.json()
       if (!response.ok) {
+        const payload = await response.json()
         throw new Error(payload.error || 'Failed to run trace')
       }
-      setTraceData(payload)
-      setActiveInput(payload.inputs[0]?.id ?? activeInput)
-      setStepIndex(0)
-      setIsPlaying(false)
+      let bundle: TraceBundle | null = null
+      const expanders = new Map<string, ReturnType<typeof createTraceExpander>>()
+      let lastRender = 0
+      const render = (force: boolean) => {
+        const now = performance.now()
+        if (!bundle || (!force && now - lastRender < 100)) return
+        lastRender = now
+        setTraceData({ ...bundle, inputs: bundle.inputs.map((input) => ({ ...input, trace: [...input.trace] })) })
+      }
+      await readTraceStream(response, (event) => {
+        if (event.type === 'start') {
+          bundle = {
+            title: event.title,
+            language: event.language,
+            code: event.code,
+            snapshot: event.snapshot,
+            inputs: event.inputs.map((input) => ({ ...input, trace: [] }))
+          }
+          event.inputs.forEach((input) => expanders.set(input.id, createTraceExpander()))
+          setActiveInput(event.inputs[0]?.id ?? activeInput)
+          setStepIndex(0)
+          setIsPlaying(false)
+          render(true)
+        } else if (event.type === 'step') {
+          const input = bundle?.inputs.find((candidate) => candidate.id === event.input)
+          const expand = expanders.get(event.input)
+          if (input && expand) input.trace.push(expand(event.step))
+          render(false)
+        } else if (event.type === 'error') {
+          const input = bundle?.inputs.find((candidate) => candidate.id === event.input)
+          if (input) input.error = event.error
+          render(true)
+        } else {
+          render(true)
+        }
+      })
     } catch (err) {
       setError(err instanceof Error ? err.message : 'Failed to run trace')
     } finally {
@@ -516,11 +632,12 @@ export default function App() {
           </div>
 
           <div className="viz">
-            {arrayHeap && <ArrayView array={arrayHeap} focus={currentStep?.focus} locals={currentStep?.locals} />}
+            {currentInput.error && <div className="error-banner">{currentInput.label} failed: {currentInput.error}</div>}
+            {arrayHeap && <ArrayView array={arrayHeap} focus={currentStep?.focus} locals={currentStep?.locals} source={heapSource} />}
             {listHeap && (
               <div>
                 <div className="viz-title">Linked List</div>
-                <LinkedListView list={listHeap} nodes={currentStep?.heap ?? []} focus={currentStep?.focus} />
+                <LinkedListView list={listHeap} nodes={currentStep?.heap ?? []} focus={currentStep?.focus} source={heapSource} />
               </div>
             )}
             {treeRoot && (
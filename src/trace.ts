@@ -5,6 +5,8 @@ export type HeapArray = {
   ref: string
   name?: string
   items: number[]
+  // Set when only the first items were captured; the rest can be paged from /heap.
+  length?: number
 }
 
 export type HeapList = {
@@ -44,14 +46,367 @@ export type TraceStep = {
   }
 }
 
+export type TraceSampling =
+  | { mode: 'full' }
+  | { mode: 'lines'; lines: number[] }
+  | { mode: 'every'; every: number }
+  | { mode: 'watch'; fields: string[] }
+
+export type TraceEngine = 'jdi' | 'instrumented'
+
 export type TraceFile = {
   title: string
   language: 'Java' | 'Python'
   code: string
+  sampling?: TraceSampling
+  engine?: TraceEngine
+  snapshot?: string
   inputs: {
     id: string
     label: string
     value: string
     trace: TraceStep[]
+    error?: string
   }[]
 }
+
+export type TraceValue = number | string | boolean | null | HeapRef
+
+export type DeltaStep = {
+  line: number
+  keyframe?: false
+  locals?: Record<string, TraceValue>
+  removedLocals?: string[]
+  localOrder?: string[]
+  heapSet?: HeapObject[]
+  heapRemoved?: string[]
+  heapOrder?: string[]
+  cells?: Record<string, (number | TraceValue)[]>
+  fields?: Record<string, Partial<Record<'value' | 'next' | 'left' | 'right', TraceValue>>>
+  focus?: TraceStep['focus'] | null
+}
+
+export type KeyframeStep = TraceStep & { keyframe: true }
+
+export type EncodedStep = KeyframeStep | DeltaStep
+
+export type DeltaTraceFile = Omit<TraceFile, 'inputs'> & {
+  format: 'delta'
+  keyframeInterval: number
+  inputs: (Omit<TraceFile['inputs'][number], 'trace'> & { trace: EncodedStep[] })[]
+}
+
+const reorder = <T>(entries: Map<string, T>, order: string[]) => {
+  const next = new Map<string, T>()
+  order.forEach((key) => {
+    const value = entries.get(key)
+    if (value !== undefined) next.set(key, value)
+  })
+  return next
+}
+
+export function createTraceExpander(): (step: EncodedStep | TraceStep) => TraceStep {
+  let locals = new Map<string, TraceValue>()
+  let heap = new Map<string, HeapObject>()
+  let focus: TraceStep['focus'] | undefined
+
+  return (encoded) => {
+    if ('heap' in encoded) {
+      const step = encoded
+      locals = new Map(Object.entries(step.locals))
+      heap = new Map(step.heap.map((object) => [object.ref, object]))
+      focus = step.focus
+      return { line: step.line, locals: step.locals, heap: step.heap, ...(focus ? { focus } : {}) }
+    }
+
+    const step = encoded as DeltaStep
+    locals = new Map(locals)
+    step.removedLocals?.forEach((name) => locals.delete(name))
+    Object.entries(step.locals ?? {}).forEach(([name, value]) => locals.set(name, value))
+    if (step.localOrder) locals = reorder(locals, step.localOrder)
+
+    heap = new Map(heap)
+    step.heapRemoved?.forEach((ref) => heap.delete(ref))
+    step.heapSet?.forEach((object) => heap.set(object.ref, object))
+    Object.entries(step.cells ?? {}).forEach(([ref, changes]) => {
+      const array = heap.get(ref)
+      if (array?.kind !== 'array') return
+      const items = [...array.items]
+      for (let i = 0; i < changes.length; i += 2) {
+        items[changes[i] as number] = changes[i + 1] as number
+      }
+      heap.set(ref, { ...array, items })
+    })
+    Object.entries(step.fields ?? {}).forEach(([ref, changes]) => {
+      const node = heap.get(ref)
+      if (node?.kind !== 'node') return
+      const updated: Record<string, unknown> = { ...node }
+      Object.entries(changes).forEach(([field, value]) => {
+        if (value === null) delete updated[field]
+        else updated[field] = value
+      })
+      heap.set(ref, updated as HeapNode)
+    })
+    if (step.heapOrder) heap = reorder(heap, step.heapOrder)
+    if (step.focus !== undefined) focus = step.focus ?? undefined
+
+    return {
+      line: step.line,
+      locals: Object.fromEntries(locals) as TraceStep['locals'],
+      heap: [...heap.values()],
+      ...(focus ? { focus } : {})
+    }
+  }
+}
+
+export function expandTrace(steps: EncodedStep[]): TraceStep[] {
+  const expand = createTraceExpander()
+  return steps.map((step) => expand(step))
+}
+
+export function expandTraceFile(file: TraceFile | DeltaTraceFile): TraceFile {
+  if (!('format' in file) || file.format !== 'delta') return file as TraceFile
+  return {
+    title: file.title,
+    language: file.language,
+    code: file.code,
+    inputs: file.inputs.map((input) => ({ ...input, trace: expandTrace(input.trace) }))
+  }
+}
+
+export type TraceStreamEvent =
+  | {
+      type: 'start'
+      title: string
+      language: TraceFile['language']
+      code: string
+      format: 'full' | 'delta'
+      keyframeInterval?: number
+      sampling?: TraceSampling
+      engine?: TraceEngine
+      snapshot?: string
+      inputs: { id: string; label: string; value: string }[]
+    }
+  | { type: 'step'; input: string; index: number; step: EncodedStep | TraceStep }
+  | { type: 'done'; input: string; steps: number }
+  | { type: 'error'; input: string; error: string }
+  | { type: 'end' }
+
+// Binary form of /run and /run/stream responses, sent when Accept lists it (BinaryTrace.java on the server).
+export const BINARY_TRACE_TYPE = 'application/x-visualizer-trace'
+
+const TAG_NULL = 0
+const TAG_FALSE = 1
+const TAG_TRUE = 2
+const TAG_INT = 3
+const TAG_DOUBLE = 4
+const TAG_STRING = 5
+const TAG_STRING_NEW = 6
+const TAG_STRING_REF = 7
+const TAG_ARRAY = 8
+const TAG_OBJECT = 9
+const TAG_END = 10
+const TAG_INT_ARRAY = 11
+const MAGIC = 'VTB1'
+const INCOMPLETE = new Error('Incomplete binary trace')
+
+// Decodes binary trace bytes into the values JSON.parse gives for the JSON form. Chunks can be pushed as they
+// arrive: push returns the top-level values completed so far and keeps a partial one for the next chunk.
+export function createBinaryTraceDecoder() {
+  const text = new TextDecoder()
+  const strings: string[] = []
+  let bytes: Uint8Array = new Uint8Array(0)
+  let view = new DataView(bytes.buffer)
+  let offset = 0
+  let started = false
+
+  const need = (length: number) => {
+    if (offset + length > bytes.length) throw INCOMPLETE
+  }
+  const byte = () => {
+    need(1)
+    return bytes[offset++]
+  }
+  const varint = () => {
+    let value = 0
+    let scale = 1
+    for (;;) {
+      const next = byte()
+      value += (next & 0x7f) * scale
+      if (next < 0x80) return value
+      scale *= 128
+    }
+  }
+  const integer = () => {
+    const zigzag = varint()
+    return zigzag % 2 === 0 ? zigzag / 2 : -(zigzag + 1) / 2
+  }
+  const string = (tag: number): string => {
+    if (tag === TAG_STRING_REF) return strings[varint()]
+    if (tag !== TAG_STRING && tag !== TAG_STRING_NEW) throw new Error(`Unexpected tag ${tag} in binary trace`)
+    const length = varint()
+    need(length)
+    const value = text.decode(bytes.subarray(offset, offset + length))
+    offset += length
+    if (tag === TAG_STRING_NEW) strings.push(value)
+    return value
+  }
+  const value = (): unknown => {
+    const tag = byte()
+    switch (tag) {
+      case TAG_NULL:
+        return null
+      case TAG_FALSE:
+        return false
+      case TAG_TRUE:
+        return true
+      case TAG_INT:
+        return integer()
+      case TAG_DOUBLE: {
+        need(8)
+        const number = view.getFloat64(offset, true)
+        offset += 8
+        return number
+      }
+      case TAG_ARRAY: {
+        const items: unknown[] = []
+        for (;;) {
+          need(1)
+          if (bytes[offset] === TAG_END) {
+            offset++
+            return items
+          }
+          items.push(value())
+        }
+      }
+      case TAG_INT_ARRAY: {
+        const items: number[] = new Array(varint())
+        let previous = 0
+        for (let i = 0; i < items.length; i++) {
+          previous += integer()
+          items[i] = previous
+        }
+        return items
+      }
+      case TAG_OBJECT: {
+        const object: Record<string, unknown> = {}
+        for (;;) {
+          const keyTag = byte()
+          if (keyTag === TAG_END) return object
+          const key = string(keyTag)
+          const item = value()
+          // As JSON.parse does, "__proto__" is an ordinary key.
+          if (key === '__proto__') Object.defineProperty(object, key, { value: item, enumerable: true, writable: true, configurable: true })
+          else object[key] = item
+        }
+      }
+      default:
+        return string(tag)
+    }
+  }
+
+  return {
+    push(chunk: Uint8Array): unknown[] {
+      const rest = bytes.subarray(offset)
+      if (rest.length) {
+        bytes = new Uint8Array(rest.length + chunk.length)
+        bytes.set(rest)
+        bytes.set(chunk, rest.length)
+      } else {
+        bytes = chunk
+      }
+      view = new DataView(bytes.buffer, bytes.byteOffset, bytes.byteLength)
+      offset = 0
+      if (!started) {
+        if (bytes.length < MAGIC.length) return []
+        if (text.decode(bytes.subarray(0, MAGIC.length)) !== MAGIC) throw new Error('Not a binary trace')
+        offset = MAGIC.length
+        started = true
+      }
+      const values: unknown[] = []
+      while (offset < bytes.length) {
+        const start = offset
+        const known = strings.length
+        try {
+          values.push(value())
+        } catch (err) {
+          if (err !== INCOMPLETE) throw err
+          offset = start
+          strings.length = known
+          break
+        }
+      }
+      return values
+    },
+    finish() {
+      if (!started || offset < bytes.length) throw new Error('Truncated binary trace')
+    }
+  }
+}
+
+// A whole /run response in the binary form.
+export function decodeBinaryTrace(buffer: ArrayBuffer): TraceFile | DeltaTraceFile {
+  const decoder = createBinaryTraceDecoder()
+  const [file] = decoder.push(new Uint8Array(buffer))
+  decoder.finish()
+  return file as TraceFile | DeltaTraceFile
+}
+
+export async function readTraceStream(response: Response, onEvent: (event: TraceStreamEvent) => void) {
+  if (!response.body) throw new Error('Streaming responses are not supported')
+  const reader = response.body.getReader()
+  if (response.headers.get('Content-Type')?.startsWith(BINARY_TRACE_TYPE)) {
+    const decoder = createBinaryTraceDecoder()
+    for (;;) {
+      const { value, done } = await reader.read()
+      if (done) break
+      decoder.push(value).forEach((event) => onEvent(event as TraceStreamEvent))
+    }
+    decoder.finish()
+    return
+  }
+  const decoder = new TextDecoder()
+  let buffered = ''
+  const flushLines = () => {
+    let newline = buffered.indexOf('\n')
+    while (newline >= 0) {
+      const line = buffered.slice(0, newline).trim()
+      buffered = buffered.slice(newline + 1)
+      if (line) onEvent(JSON.parse(line) as TraceStreamEvent)
+      newline = buffered.indexOf('\n')
+    }
+  }
+  for (;;) {
+    const { value, done } = await reader.read()
+    if (done) break
+    buffered += decoder.decode(value, { stream: true })
+    flushLines()
+  }
+  buffered += decoder.decode() + '\n'
+  flushLines()
+}
+
+export type HeapPageRequest = {
+  snapshot: string
+  input: number
+  step: number
+  ref: string
+  offset?: number
+  limit?: number
+}
+
+export type HeapPage =
+  | { kind: 'array'; ref: string; offset: number; length: number; items: TraceValue[]; heap: HeapObject[] }
+  | { kind: 'nodes'; ref: string; offset: number; nodes: HeapNode[]; heap: HeapObject[]; more: boolean }
+
+export async function fetchHeapPage(apiUrl: string, request: HeapPageRequest): Promise<HeapPage> {
+  const response = await fetch(`${apiUrl}/heap`, {
+    method: 'POST',
+    headers: { 'Content-Type': 'application/json' },
+    body: JSON.stringify(request)
+  })
+  const payload = await response.json()
+  // A replay that fails after the server has committed its 200 reports the error in the body.
+  if (!response.ok || payload.error) throw new Error(payload.error || 'Failed to load heap page')
+  return payload as HeapPage
+}